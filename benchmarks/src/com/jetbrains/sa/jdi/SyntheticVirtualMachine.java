@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.oops.JVMDIClassStatus;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JDI layer stand-in for benchmarks: not attached to anything, so only the methods
+ * which do not touch the target (capabilities, value mirrors etc.) may be used,
+ * and the ones overridden here: the loaded classes and an int array with the given ids
+ */
+public final class SyntheticVirtualMachine {
+    public static final long INT_ARRAY_ID = 0x700000000L;
+
+    private SyntheticVirtualMachine() {
+    }
+
+    public static VirtualMachineImpl create() {
+        return new VirtualMachineImpl(null, 0);
+    }
+
+    /**
+     * A vm with classCount loaded classes and an int[arrayLength] {0, 1, 2...} with id {@link #INT_ARRAY_ID}
+     */
+    public static VirtualMachineImpl create(int classCount, int arrayLength) {
+        return new SyntheticVm(classCount, arrayLength);
+    }
+
+    private static final class SyntheticVm extends VirtualMachineImpl {
+        private final List<ReferenceTypeImpl> myClasses;
+        private final ArrayReferenceImpl myIntArray;
+
+        SyntheticVm(int classCount, int arrayLength) {
+            super(null, 0);
+            List<ReferenceTypeImpl> classes = new ArrayList<ReferenceTypeImpl>(classCount);
+            for (int i = 0; i < classCount; i++) {
+                classes.add(new SyntheticClass(this, 0x800000000L + i * 512L,
+                        "Lcom/example/generated/package" + (i % 100) + "/SomeGeneratedClass" + i + ";"));
+            }
+            myClasses = Collections.unmodifiableList(classes);
+            myIntArray = new SyntheticIntArray(new SyntheticArrayType(this), arrayLength);
+        }
+
+        @Override
+        public List<ReferenceTypeImpl> allClasses() {
+            return myClasses;
+        }
+
+        @Override
+        public ObjectReferenceImpl objectMirror(long id) {
+            if (id != INT_ARRAY_ID) {
+                throw new IllegalArgumentException("Unknown object " + id);
+            }
+            return myIntArray;
+        }
+    }
+
+    private static final class SyntheticClass extends ClassTypeImpl {
+        private final long myId;
+        private final String mySignature;
+
+        SyntheticClass(VirtualMachineImpl vm, long id, String signature) {
+            super(vm, null);
+            myId = id;
+            mySignature = signature;
+        }
+
+        @Override
+        public long uniqueID() {
+            return myId;
+        }
+
+        @Override
+        public String signature() {
+            return mySignature;
+        }
+
+        @Override
+        public int classStatus() {
+            return JVMDIClassStatus.VERIFIED | JVMDIClassStatus.PREPARED | JVMDIClassStatus.INITIALIZED;
+        }
+    }
+
+    private static final class SyntheticArrayType extends ArrayTypeImpl {
+        SyntheticArrayType(VirtualMachineImpl vm) {
+            super(vm, null);
+        }
+
+        @Override
+        public String signature() {
+            return "[I";
+        }
+    }
+
+    private static final class SyntheticIntArray extends ArrayReferenceImpl {
+        // the array as it is in the target memory
+        private final byte[] myMemory;
+
+        SyntheticIntArray(ReferenceTypeImpl type, int length) {
+            super(type, null, length);
+            ByteBuffer memory = ByteBuffer.allocate(length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < length; i++) {
+                memory.putInt(i);
+            }
+            myMemory = memory.array();
+        }
+
+        // copies the range like VirtualMachineImpl.readMemory does from the read cache
+        @Override
+        public ByteBuffer getPrimitiveValues(int index, int len) {
+            validateArrayAccess(index, len);
+            byte[] data = new byte[len * 4];
+            System.arraycopy(myMemory, index * 4, data, 0, data.length);
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public long uniqueID() {
+            return INT_ARRAY_ID;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import com.jetbrains.sa.jdi.SyntheticVirtualMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command handling end to end: dispatch, reply encoding and sending.
+ * The commands reading the target run against the classes and the int array of the synthetic vm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private VirtualMachineImpl myVm;
+    private Packet myIdSizesRequest;
+    private Packet myCapabilitiesRequest;
+    private Packet myAllClassesRequest;
+    private Packet myArrayGetValuesRequest;
+    private ReplyCache myReplyCache;
+
+    @Setup
+    public void setup() {
+        myVm = new VirtualMachineImpl(new BlackholeConnection(), SyntheticVirtualMachine.create(size, size));
+        myIdSizesRequest = request(JDWP.VirtualMachine.COMMAND_SET, JDWP.VirtualMachine.IDSizes.COMMAND);
+        myCapabilitiesRequest = request(JDWP.VirtualMachine.COMMAND_SET, JDWP.VirtualMachine.CapabilitiesNew.COMMAND);
+        myAllClassesRequest = request(JDWP.VirtualMachine.COMMAND_SET, JDWP.VirtualMachine.AllClasses.COMMAND);
+
+        // the whole array
+        PacketStream arguments = new PacketStream(myVm, 1, JDWP.ArrayReference.COMMAND_SET, JDWP.ArrayReference.GetValues.COMMAND);
+        arguments.writeObjectRef(SyntheticVirtualMachine.INT_ARRAY_ID);
+        arguments.writeInt(0);
+        arguments.writeInt(size);
+        myArrayGetValuesRequest = request(JDWP.ArrayReference.COMMAND_SET, JDWP.ArrayReference.GetValues.COMMAND);
+        myArrayGetValuesRequest.data = arguments.data();
+        arguments.send();
+
+        myReplyCache = new ReplyCache(Long.MAX_VALUE);
+        PacketStream reply = reply(myAllClassesRequest);
+        myReplyCache.put(myAllClassesRequest, reply.data());
+        reply.send();
+    }
+
+    private static Packet request(int cmdSet, int cmd) {
+        Packet packet = new Packet();
+        packet.flags = Packet.NoFlags;
+        packet.cmdSet = (short) cmdSet;
+        packet.cmd = (short) cmd;
+        return packet;
+    }
+
+    private PacketStream reply(Packet request) {
+        PacketStream answer = new PacketStream(myVm, request.id, request.cmdSet, request.cmd);
+        CommandTable.get(request.cmdSet, request.cmd).myCommand.reply(myVm, answer, new PacketStream(myVm, request));
+        return answer;
+    }
+
+    private void dispatch(Packet request) {
+        reply(request).send();
+    }
+
+    @Benchmark
+    public void idSizes() {
+        dispatch(myIdSizesRequest);
+    }
+
+    @Benchmark
+    public void capabilitiesNew() {
+        dispatch(myCapabilitiesRequest);
+    }
+
+    @Benchmark
+    public void allClasses() {
+        dispatch(myAllClassesRequest);
+    }
+
+    @Benchmark
+    public void allClassesCached() {
+        PacketStream answer = new PacketStream(myVm, 1, JDWP.VirtualMachine.COMMAND_SET, JDWP.VirtualMachine.AllClasses.COMMAND);
+        answer.writeByteArray(myReplyCache.get(myAllClassesRequest));
+        answer.send();
+    }
+
+    @Benchmark
+    public void arrayGetIntValues() {
+        dispatch(myArrayGetValuesRequest);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import com.jetbrains.sa.jdi.SyntheticVirtualMachine;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packet encoding and decoding primitives
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+    private static final int COUNT = 64;
+
+    private VirtualMachineImpl myVm;
+    private Packet myPacket;
+    private byte[] myPacketBytes;
+    private String myAsciiString;
+    private String myUnicodeString;
+
+    @Setup
+    public void setup() throws IOException {
+        myVm = new VirtualMachineImpl(new BlackholeConnection(), SyntheticVirtualMachine.create());
+        myAsciiString = "Ljava/util/concurrent/ConcurrentHashMap$KeySetView;";
+        myUnicodeString = "Привет, 世界! مرحبا שלום";
+
+        PacketStream stream = new PacketStream(myVm, 1, 1, 1);
+        writePrimitives(stream);
+        ByteBuffer packet = stream.dataStream.finish(stream.pkt);
+        myPacketBytes = new byte[packet.remaining()];
+        packet.get(myPacketBytes);
+        myPacket = Packet.fromByteArray(myPacketBytes);
+    }
+
+    private static void writePrimitives(PacketStream stream) {
+        for (int i = 0; i < COUNT; i++) {
+            stream.writeByte((byte) i);
+            stream.writeShort((short) i);
+            stream.writeInt(i);
+            stream.writeLong(i * 31L);
+            stream.writeObjectRef(0x7f0000000000L + i * 16);
+        }
+    }
+
+    @Benchmark
+    public void writePrimitivesAndSend() {
+        PacketStream stream = new PacketStream(myVm, 1, 1, 1);
+        writePrimitives(stream);
+        stream.send();
+    }
+
+    @Benchmark
+    public void writeAsciiStrings() {
+        PacketStream stream = new PacketStream(myVm, 1, 1, 1);
+        for (int i = 0; i < COUNT; i++) {
+            stream.writeString(myAsciiString);
+        }
+        stream.send();
+    }
+
+    @Benchmark
+    public void writeUnicodeStrings() {
+        PacketStream stream = new PacketStream(myVm, 1, 1, 1);
+        for (int i = 0; i < COUNT; i++) {
+            stream.writeString(myUnicodeString);
+        }
+        stream.send();
+    }
+
+    @Benchmark
+    public long readPrimitives() {
+        PacketStream stream = new PacketStream(myVm, myPacket);
+        long res = 0;
+        for (int i = 0; i < COUNT; i++) {
+            res += stream.readByte();
+            res += stream.readShort();
+            res += stream.readInt();
+            res += stream.readLong();
+            res += stream.readObjectRef();
+        }
+        return res;
+    }
+
+    @Benchmark
+    public byte[] packetToByteArray() {
+        return myPacket.toByteArray();
+    }
+
+    @Benchmark
+    public Packet packetFromByteArray() throws IOException {
+        return Packet.fromByteArray(myPacketBytes);
+    }
+
+    @Benchmark
+    public void replyBufferRoundTrip(Blackhole blackhole) {
+        ReplyBuffer buffer = ReplyBuffer.acquire();
+        for (int i = 0; i < COUNT; i++) {
+            buffer.putLong(i);
+        }
+        blackhole.consume(buffer.finish(myPacket));
+        ReplyBuffer.release(buffer);
+    }
+}
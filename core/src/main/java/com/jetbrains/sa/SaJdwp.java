@@ -84,6 +84,12 @@ public class SaJdwp {
             throw new IllegalStateException("Unable to start on version " + version);
         }
 
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(SaJdwpUtils.PROPERTIES_PREFIX)) {
+                commands.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+
         String serverClassName = server ? SaJdwpListeningServer.class.getName() : SaJdwpAttachingServer.class.getName();
         Collections.addAll(commands, serverClassName, target, port);
         return commands;
@@ -128,7 +134,7 @@ public class SaJdwp {
                 "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.memory=ALL-UNNAMED",
                 "--add-opens",   JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.oops=ALL-UNNAMED",
                 "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.utilities=ALL-UNNAMED",
-                "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.debugger=ALL-UNNAMED",
+                "--add-opens",   JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.debugger=ALL-UNNAMED",
                 "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.tools.jcore=ALL-UNNAMED",
                 "--add-exports", JDK_HOTSPOT_AGENT + "/sun.jvm.hotspot.classfile=ALL-UNNAMED", // for jdk 10
                 "--add-exports", "jdk.jdi/com.sun.tools.jdi=ALL-UNNAMED", // for jdk 16
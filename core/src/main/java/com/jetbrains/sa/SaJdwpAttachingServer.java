@@ -18,7 +18,7 @@ package com.jetbrains.sa;
 import com.jetbrains.sa.jdi.VirtualMachineImpl;
 import com.jetbrains.sa.jdwp.JDWPProxy;
 import com.sun.jdi.connect.spi.Connection;
-import com.sun.tools.jdi.SocketTransportService;
+import com.sun.jdi.connect.spi.TransportService;
 
 public class SaJdwpAttachingServer {
     static final String SERVER_READY = "sa-jdwp server connected";
@@ -41,8 +41,8 @@ public class SaJdwpAttachingServer {
         System.out.println(SERVER_READY);
         System.out.println("Connecting to " + address);
 
-        final SocketTransportService socketTransportService = new SocketTransportService();
-        final Connection connection = socketTransportService.attach(address, 0, 0);
+        final TransportService transportService = SaJdwpUtils.createTransportService();
+        final Connection connection = transportService.attach(address, 0, 0);
 
         System.out.println("Connected to " + address);
 
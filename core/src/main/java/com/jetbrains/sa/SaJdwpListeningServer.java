@@ -19,7 +19,6 @@ import com.jetbrains.sa.jdi.VirtualMachineImpl;
 import com.jetbrains.sa.jdwp.JDWPProxy;
 import com.sun.jdi.connect.spi.Connection;
 import com.sun.jdi.connect.spi.TransportService;
-import com.sun.tools.jdi.SocketTransportService;
 
 import java.io.IOException;
 
@@ -39,9 +38,10 @@ public class SaJdwpListeningServer {
         System.setProperty("sun.jvm.hotspot.debugger.useWindbgDebugger", "true");
 
         final VirtualMachineImpl vm = SaJdwpUtils.createVirtualMachine(args[0]);
+        vm.startWarmUp(System.getProperty(SaJdwpUtils.WARM_UP_PROPERTY, SaJdwpUtils.DEFAULT_WARM_UP));
 
-        final SocketTransportService socketTransportService = new SocketTransportService();
-        final TransportService.ListenKey listenKey = socketTransportService.startListening(args.length > 1 ? args[1] : null);
+        final TransportService transportService = SaJdwpUtils.createTransportService();
+        final TransportService.ListenKey listenKey = transportService.startListening(args.length > 1 ? args[1] : null);
 
         System.err.println(WAITING_FOR_DEBUGGER + listenKey.address());
 
@@ -51,7 +51,7 @@ public class SaJdwpListeningServer {
                     public void run() {
                         try {
                             vm.dispose();
-                            socketTransportService.stopListening(listenKey);
+                            transportService.stopListening(listenKey);
                         } catch (IllegalArgumentException ignored) {
                         } catch (IOException e) {
                             e.printStackTrace();
@@ -59,8 +59,35 @@ public class SaJdwpListeningServer {
                     }
                 }));
 
-        Connection connection = socketTransportService.accept(listenKey, 0, 0);
-        socketTransportService.stopListening(listenKey);
-        JDWPProxy.reply(connection, vm);
+        if (Boolean.getBoolean(SaJdwpUtils.MULTI_SESSION_PROPERTY)) {
+            serveSessions(vm, transportService, listenKey);
+        } else {
+            Connection connection = transportService.accept(listenKey, 0, 0);
+            transportService.stopListening(listenKey);
+            JDWPProxy.reply(connection, vm);
+        }
+    }
+
+    // keep the vm attached and accept debuggers until the process is killed, each session is served by its own thread
+    private static void serveSessions(final VirtualMachineImpl vm,
+                                      TransportService transportService,
+                                      TransportService.ListenKey listenKey) throws IOException {
+        for (int session = 1; ; session++) {
+            final Connection connection = transportService.accept(listenKey, 0, 0);
+            System.err.println("Debugger session " + session + " started");
+            final int sessionNumber = session;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        JDWPProxy.serve(connection, vm);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    System.err.println("Debugger session " + sessionNumber + " finished");
+                }
+            }, "JDWP session " + session);
+            thread.setDaemon(true);
+            thread.start();
+        }
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa;
+
+import com.jetbrains.sa.jdi.VirtualMachineImpl;
+import com.jetbrains.sa.jdwp.JDWPProxy;
+import com.jetbrains.sa.jdwp.TraceFile;
+import com.sun.jdi.connect.spi.ClosedConnectionException;
+import com.sun.jdi.connect.spi.Connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds requests from a trace recorded with -Dsa.jdwp.trace=file back into the server, in process,
+ * one request at a time, and reports the throughput and per command latencies.
+ * Should be started with the same classpath and options as the server process.
+ */
+public class SaJdwpReplay {
+    private static final byte[] EOF = new byte[0];
+
+    // do not allow instance creation
+    private SaJdwpReplay() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: SaJdwpReplay <pid|core file> <trace file> (iterations)");
+            System.exit(1);
+        }
+
+        System.setProperty("sun.jvm.hotspot.debugger.useWindbgDebugger", "true");
+
+        List<TraceFile.Record> requests = new ArrayList<TraceFile.Record>();
+        Map<Integer, byte[]> recordedReplies = new HashMap<Integer, byte[]>();
+        TraceFile.Reader reader = new TraceFile.Reader(new File(args[1]));
+        try {
+            TraceFile.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.kind == TraceFile.REQUEST) {
+                    requests.add(record);
+                } else {
+                    recordedReplies.put(record.id(), record.packet);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        final VirtualMachineImpl vm = SaJdwpUtils.createVirtualMachine(args[0]);
+        try {
+            for (int i = 1; i <= iterations; i++) {
+                JDWPProxy.resetStatistics();
+                replay(vm, requests, recordedReplies, i);
+            }
+        } finally {
+            vm.dispose();
+        }
+    }
+
+    private static void replay(final VirtualMachineImpl vm,
+                               List<TraceFile.Record> requests,
+                               Map<Integer, byte[]> recordedReplies,
+                               int iteration) throws Exception {
+        final ReplayConnection connection = new ReplayConnection();
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    JDWPProxy.serve(connection, vm);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "JDWP replay");
+        server.start();
+
+        int count = 0;
+        int mismatches = 0;
+        long start = System.nanoTime();
+        for (TraceFile.Record request : requests) {
+            connection.myRequests.put(request.packet);
+            count++;
+            if (request.isDispose()) {
+                break; // no reply
+            }
+            byte[] reply;
+            while ((reply = connection.myReplies.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                if (!server.isAlive()) {
+                    throw new IllegalStateException("Server stopped at request " + count);
+                }
+            }
+            byte[] recordedReply = recordedReplies.get(request.id());
+            if (recordedReply != null && !Arrays.equals(recordedReply, reply)) {
+                mismatches++;
+            }
+        }
+        connection.myRequests.put(EOF);
+        server.join();
+        long time = System.nanoTime() - start;
+
+        System.out.println(String.format("Iteration %d: %d requests in %.1f ms, %.1f requests/s, %d replies differ from the trace",
+                iteration, count, time / 1e6, count / (time / 1e9), mismatches));
+        JDWPProxy.dumpStatistics(System.out);
+    }
+
+    private static class ReplayConnection extends Connection {
+        private final BlockingQueue<byte[]> myRequests = new LinkedBlockingQueue<byte[]>();
+        private final BlockingQueue<byte[]> myReplies = new LinkedBlockingQueue<byte[]>();
+        private volatile boolean myClosed = false;
+
+        @Override
+        public byte[] readPacket() throws IOException {
+            if (myClosed) {
+                throw new ClosedConnectionException();
+            }
+            try {
+                return myRequests.take();
+            } catch (InterruptedException e) {
+                throw new ClosedConnectionException();
+            }
+        }
+
+        @Override
+        public void writePacket(byte[] b) throws IOException {
+            if (myClosed) {
+                throw new ClosedConnectionException();
+            }
+            // the array may be longer than the packet
+            int len = ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+            myReplies.add(Arrays.copyOf(b, len));
+        }
+
+        @Override
+        public void close() {
+            myClosed = true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !myClosed;
+        }
+    }
+}
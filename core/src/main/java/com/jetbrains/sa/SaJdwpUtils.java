@@ -16,12 +16,25 @@
 package com.jetbrains.sa;
 
 import com.jetbrains.sa.jdi.VirtualMachineImpl;
+import com.jetbrains.sa.jdwp.NioTransportService;
 import com.sun.jdi.Bootstrap;
 import com.sun.jdi.VirtualMachineManager;
+import com.sun.jdi.connect.spi.TransportService;
+import com.sun.tools.jdi.SocketTransportService;
 
 import java.util.Locale;
 
 class SaJdwpUtils {
+    // all system properties with this prefix are passed to the server process
+    static final String PROPERTIES_PREFIX = "sa.jdwp.";
+    // "socket" (default) or "nio"
+    static final String TRANSPORT_PROPERTY = PROPERTIES_PREFIX + "transport";
+    // keep listening and serve several debuggers from one attached vm
+    static final String MULTI_SESSION_PROPERTY = PROPERTIES_PREFIX + "multisession";
+    // caches to fill while waiting for the debugger, "none" to disable
+    static final String WARM_UP_PROPERTY = PROPERTIES_PREFIX + "warmup";
+    static final String DEFAULT_WARM_UP = "classes,threads,frames,lines";
+
     static VirtualMachineImpl createVirtualMachine(String target) throws Exception {
         VirtualMachineManager virtualMachineManager = Bootstrap.virtualMachineManager();
         try {
@@ -37,6 +50,13 @@ class SaJdwpUtils {
         }
     }
 
+    static TransportService createTransportService() {
+        if ("nio".equals(System.getProperty(TRANSPORT_PROPERTY))) {
+            return new NioTransportService();
+        }
+        return new SocketTransportService();
+    }
+
     static boolean isWindows() {
         return System.getProperty("os.name").toLowerCase(Locale.US).startsWith("windows");
     }
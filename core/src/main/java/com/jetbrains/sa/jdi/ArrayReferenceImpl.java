@@ -39,10 +39,12 @@ package com.jetbrains.sa.jdi;
 import com.jetbrains.sa.jdwp.JDWP;
 import sun.jvm.hotspot.debugger.OopHandle;
 import sun.jvm.hotspot.oops.Array;
+import sun.jvm.hotspot.oops.ArrayKlass;
 import sun.jvm.hotspot.oops.ObjArray;
 import sun.jvm.hotspot.oops.TypeArray;
 import sun.jvm.hotspot.runtime.BasicType;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -50,8 +52,12 @@ import java.util.List;
 public class ArrayReferenceImpl extends ObjectReferenceImpl {
     private final int length;
     ArrayReferenceImpl(ReferenceTypeImpl type, Array aRef) {
+        this(type, aRef, (int) aRef.getLength());
+    }
+
+    ArrayReferenceImpl(ReferenceTypeImpl type, Array aRef, int length) {
         super(type, aRef);
-        length = (int) aRef.getLength();
+        this.length = length;
     }
 
     public ArrayTypeImpl arrayType() {
@@ -74,7 +80,7 @@ public class ArrayReferenceImpl extends ObjectReferenceImpl {
      * length of -1 (meaning rest of array) has been converted
      * before entry.
      */
-    private void validateArrayAccess(int index, int len) {
+    public void validateArrayAccess(int index, int len) {
         // because length can be computed from index,
         // index must be tested first for correct error message
         if ((index < 0) || (index > length())) {
@@ -146,6 +152,31 @@ public class ArrayReferenceImpl extends ObjectReferenceImpl {
         return vals;
     }
 
+    /**
+     * Values of a range of a primitive array as they are in the target memory, in the target byte order, read in one go.
+     * Null if the array is not primitive or the memory can not be read in bulk.
+     */
+    public ByteBuffer getPrimitiveValues(int index, int len) {
+        validateArrayAccess(index, len);
+        if (!(ref() instanceof TypeArray)) {
+            return null;
+        }
+        TypeArray typeArray = (TypeArray) ref();
+        BasicType type = BasicType.charToBasicType(arrayType().componentSignature().charAt(0));
+        int log2ElementSize = ((ArrayKlass) typeArray.getKlass()).getLog2ElementSize();
+        long offset = Array.baseOffsetInBytes(type) + ((long) index << log2ElementSize);
+        ByteBuffer values = vm().readMemory(typeArray.getHandle(), offset, (long) len << log2ElementSize);
+        if (values != null && type == BasicType.T_BOOLEAN) {
+            // jdwp booleans are 0 or 1, same as sa reads them
+            for (int i = 0; i < len; i++) {
+                if (values.get(i) != 0) {
+                    values.put(i, (byte) 1);
+                }
+            }
+        }
+        return values;
+    }
+
     protected void visitReferences(HandleVisitor visitor) {
         if (ref() instanceof ObjArray) {
             ObjArray objArray = (ObjArray) ref();
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+
+package com.jetbrains.sa.jdi;
+
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.IncompatibleThreadStateException;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Fills the caches right after attach, while the server waits for the debugger to connect.
+ * The steps go in the order the debugger usually needs the data: classes, threads and thread groups,
+ * stack frames of every thread, line tables of the methods on the stacks.
+ * Every unit of work takes the vm lock, so requests of a connected debugger get in between.
+ */
+final class CacheWarmUp implements Runnable {
+    static final String CLASSES = "classes";
+    static final String THREADS = "threads";
+    static final String FRAMES = "frames";
+    static final String LINES = "lines";
+
+    private final VirtualMachineImpl myVm;
+    private final Set<String> mySteps;
+    private List<ThreadReferenceImpl> myThreads = Collections.emptyList();
+
+    CacheWarmUp(VirtualMachineImpl vm, String steps) {
+        myVm = vm;
+        mySteps = new HashSet<String>();
+        for (String step : steps.split(",")) {
+            mySteps.add(step.trim().toLowerCase(Locale.US));
+        }
+    }
+
+    boolean isEmpty() {
+        return !mySteps.contains(CLASSES) && !mySteps.contains(THREADS) && !mySteps.contains(FRAMES) && !mySteps.contains(LINES);
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            if (mySteps.contains(CLASSES)) {
+                locked(new Runnable() {
+                    @Override
+                    public void run() {
+                        myVm.allClasses();
+                    }
+                });
+            }
+            if (mySteps.contains(THREADS) || mySteps.contains(FRAMES) || mySteps.contains(LINES)) {
+                locked(new Runnable() {
+                    @Override
+                    public void run() {
+                        myThreads = myVm.allThreads();
+                        myVm.topLevelThreadGroups();
+                    }
+                });
+            }
+            if (mySteps.contains(FRAMES) || mySteps.contains(LINES)) {
+                for (final ThreadReferenceImpl thread : myThreads) {
+                    locked(new Runnable() {
+                        @Override
+                        public void run() {
+                            frames(thread);
+                        }
+                    });
+                }
+            }
+            if (mySteps.contains(LINES)) {
+                for (final ThreadReferenceImpl thread : myThreads) {
+                    locked(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (StackFrameImpl frame : frames(thread)) {
+                                try {
+                                    frame.location().method().allLineLocations();
+                                } catch (AbsentInformationException ignored) {
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        } catch (InterruptedException e) {
+            return; // the vm is disposed
+        } catch (CancellationException e) {
+            return;
+        }
+        System.err.println("Caches warmed up in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static List<StackFrameImpl> frames(ThreadReferenceImpl thread) {
+        try {
+            return thread.frames();
+        } catch (IncompatibleThreadStateException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private void locked(Runnable work) throws InterruptedException {
+        myVm.lock().lockInterruptibly();
+        try {
+            work.run();
+        } catch (CancellationException e) {
+            throw e;
+        } catch (RuntimeException ignored) {
+            // the debugger gets the error when it asks for the same data
+        } finally {
+            myVm.lock().unlock();
+        }
+    }
+}
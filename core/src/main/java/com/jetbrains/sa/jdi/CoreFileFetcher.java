@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.Page;
+import sun.jvm.hotspot.debugger.PageFetcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads the memory of an elf core file from the file mapped into memory.
+ * The program headers are parsed once, the loadable segments are mapped in chunks when first read,
+ * so a read is a copy from the mapping and the os page cache keeps the core between the sessions.
+ * sa reads the core with a system call for every page.
+ * <p>
+ * Memory which is not in the core (code of the shared libraries, segments not dumped) is read by the sa fetcher,
+ * which knows where to find it.
+ */
+final class CoreFileFetcher implements PageFetcher, Closeable {
+    private static final boolean ENABLED = !"false".equals(System.getProperty("sa.jdwp.read.core.mmap"));
+    // a mapping can not be bigger than 2 GB
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    private static final int PT_LOAD = 1;
+
+    private final PageFetcher myFetcher;
+    private final RandomAccessFile myFile;
+    private final FileChannel myChannel;
+    // sorted by address (unsigned), do not overlap
+    private final Segment[] mySegments;
+    private long myReads = 0;
+    private long myFallbacks = 0;
+
+    private static final class Segment {
+        private final long myAddress;
+        private final long myOffset;
+        // only the part present in the file
+        private final long mySize;
+        private final MappedByteBuffer[] myChunks;
+
+        Segment(long address, long offset, long size) {
+            myAddress = address;
+            myOffset = offset;
+            mySize = size;
+            myChunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+        }
+    }
+
+    private CoreFileFetcher(PageFetcher fetcher, RandomAccessFile file, List<Segment> segments) {
+        myFetcher = fetcher;
+        myFile = file;
+        myChannel = file.getChannel();
+        mySegments = segments.toArray(new Segment[segments.size()]);
+    }
+
+    /**
+     * Returns a fetcher reading the mapped core, or the given one if the core is not an elf file
+     */
+    static PageFetcher wrap(PageFetcher fetcher, File coreFile) {
+        if (!ENABLED || coreFile == null) {
+            return fetcher;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(coreFile, "r");
+            List<Segment> segments = readSegments(file.getChannel());
+            if (segments != null) {
+                CoreFileFetcher res = new CoreFileFetcher(fetcher, file, segments);
+                file = null;
+                return res;
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to map " + coreFile + ", reading it with sa: " + e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return fetcher;
+    }
+
+    /**
+     * Loadable segments of the elf file, null if it is not an elf core
+     */
+    private static List<Segment> readSegments(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, 64);
+        if (header.remaining() < 52 || header.getInt(0) != 0x7f454c46) { // \177ELF
+            return null;
+        }
+        boolean is64 = header.get(4) == 2;
+        header.order(header.get(5) == 2 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        if (header.getShort(16) != 4) { // ET_CORE
+            return null;
+        }
+        long phOffset = is64 ? header.getLong(32) : header.getInt(28) & 0xffffffffL;
+        int phEntrySize = header.getShort(is64 ? 54 : 42) & 0xffff;
+        int phCount = header.getShort(is64 ? 56 : 44) & 0xffff;
+        ByteBuffer headers = read(channel, phOffset, phEntrySize * phCount).order(header.order());
+        if (headers.remaining() < phEntrySize * phCount) {
+            return null;
+        }
+        List<Segment> segments = new ArrayList<Segment>();
+        for (int i = 0; i < phCount; i++) {
+            int at = i * phEntrySize;
+            if (headers.getInt(at) != PT_LOAD) {
+                continue;
+            }
+            long offset, address, size;
+            if (is64) {
+                offset = headers.getLong(at + 8);
+                address = headers.getLong(at + 16);
+                size = headers.getLong(at + 32);
+            } else {
+                offset = headers.getInt(at + 4) & 0xffffffffL;
+                address = headers.getInt(at + 8) & 0xffffffffL;
+                size = headers.getInt(at + 16) & 0xffffffffL;
+            }
+            if (size > 0 && offset + size <= channel.size()) {
+                segments.add(new Segment(address, offset, size));
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment s1, Segment s2) {
+                return unsignedLess(s1.myAddress, s2.myAddress) ? -1 : s1.myAddress == s2.myAddress ? 0 : 1;
+            }
+        });
+        return segments;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public synchronized Page fetchPage(long pageBaseAddress, long numBytes) {
+        myReads++;
+        Segment segment = findSegment(pageBaseAddress);
+        if (segment != null && numBytes <= Integer.MAX_VALUE && pageBaseAddress - segment.myAddress + numBytes <= segment.mySize) {
+            try {
+                byte[] data = new byte[(int) numBytes];
+                long from = pageBaseAddress - segment.myAddress;
+                int copied = 0;
+                while (copied < data.length) {
+                    long position = from + copied;
+                    int index = (int) (position / CHUNK_SIZE);
+                    MappedByteBuffer chunk = segment.myChunks[index];
+                    if (chunk == null) {
+                        long start = index * CHUNK_SIZE;
+                        chunk = segment.myChunks[index] =
+                                myChannel.map(FileChannel.MapMode.READ_ONLY, segment.myOffset + start, Math.min(CHUNK_SIZE, segment.mySize - start));
+                    }
+                    int inChunk = (int) (position - index * CHUNK_SIZE);
+                    int length = Math.min(data.length - copied, chunk.capacity() - inChunk);
+                    chunk.position(inChunk);
+                    chunk.get(data, copied, length);
+                    copied += length;
+                }
+                return new Page(pageBaseAddress, data);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        myFallbacks++;
+        return myFetcher.fetchPage(pageBaseAddress, numBytes);
+    }
+
+    private Segment findSegment(long address) {
+        int low = 0;
+        int high = mySegments.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = mySegments[mid];
+            if (unsignedLess(address, segment.myAddress)) {
+                high = mid - 1;
+            } else if (!unsignedLess(address - segment.myAddress, segment.mySize)) {
+                low = mid + 1;
+            } else {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    // addresses in the upper half (vsyscall page) are negative
+    private static boolean unsignedLess(long a, long b) {
+        return a + Long.MIN_VALUE < b + Long.MIN_VALUE;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return myReads + " reads from the mapped core, " + myFallbacks + " of them passed to sa";
+    }
+
+    @Override
+    public void close() throws IOException {
+        // mappings are released when collected
+        myFile.close();
+    }
+}
@@ -38,6 +38,8 @@ package com.jetbrains.sa.jdi;
 
 import sun.jvm.hotspot.oops.*;
 
+import java.nio.ByteBuffer;
+
 public class FieldImpl extends TypeComponentImpl {
     private final sun.jvm.hotspot.oops.Field saField;
 
@@ -89,6 +91,36 @@ public class FieldImpl extends TypeComponentImpl {
         return valueImpl;
     }
 
+    // get the value of this Field from a copy of the target object memory,
+    // oops are still read by sa as they may need decoding
+    ValueImpl getValue(Oop target, ByteBuffer body) {
+        Field saField = ref();
+        FieldType ft = saField.getFieldType();
+        if (body == null || ft.isOop()) {
+            return getValue(target);
+        }
+        int offset = (int) saField.getOffset();
+        if (ft.isByte()) {
+            return vm().mirrorOf(body.get(offset));
+        } else if (ft.isChar()) {
+            return vm().mirrorOf(body.getChar(offset));
+        } else if (ft.isDouble()) {
+            return vm().mirrorOf(body.getDouble(offset));
+        } else if (ft.isFloat()) {
+            return vm().mirrorOf(body.getFloat(offset));
+        } else if (ft.isInt()) {
+            return vm().mirrorOf(body.getInt(offset));
+        } else if (ft.isLong()) {
+            return vm().mirrorOf(body.getLong(offset));
+        } else if (ft.isShort()) {
+            return vm().mirrorOf(body.getShort(offset));
+        } else if (ft.isBoolean()) {
+            return vm().mirrorOf(body.get(offset) != 0);
+        } else {
+            throw new RuntimeException("Should not reach here");
+        }
+    }
+
     public boolean equals(Object obj) {
         if ((obj instanceof FieldImpl)) {
             FieldImpl other = (FieldImpl)obj;
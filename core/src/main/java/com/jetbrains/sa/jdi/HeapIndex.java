@@ -0,0 +1,614 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.OopHandle;
+import sun.jvm.hotspot.oops.*;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Instances of every class and referrers of every object, collected in a single heap walk
+ * and kept in memory mapped files, so that instances, instance counts and referring objects requests
+ * do not walk the whole heap again each time.
+ * <p>
+ * Objects are numbered in the heap walk order. Instances are grouped by class and referrers by the referenced object,
+ * both as offsets into one array (compressed sparse rows). Static fields are referenced from the class object.
+ * <p>
+ * The index of a core file is kept in a directory next to it and is reused when the same core is opened again.
+ */
+final class HeapIndex implements Closeable {
+    private static final int CHECKPOINT_MASK = (1 << 20) - 1;
+
+    private static final int MAGIC = 0x53414858; // "SAHX"
+    private static final int VERSION = 1;
+    private static final String HEADER_FILE = "index";
+    private static final String[] ARRAY_FILES = {"addresses", "instances", "sorted-addresses", "sorted-objects", "referrer-starts", "referrers"};
+    // the core key includes the crc of the start of the core: the elf header, program headers and notes
+    private static final int CORE_KEY_BYTES = 64 * 1024;
+
+    private final VirtualMachineImpl myVm;
+    private final long[] myClassAddresses;          // klass address by the class number
+    private final LongMap<Integer> myClassNumbers;  // class number by the klass address
+    private final long[] myClassStarts;             // start in myInstances by the class number, one extra at the end
+    private final MappedArray myAddresses;          // address by the object number (long)
+    private final MappedArray myInstances;          // object numbers grouped by class (int)
+    private final MappedArray mySortedAddresses;    // all addresses ascending (long)
+    private final MappedArray mySortedObjects;      // object numbers in the same order (int)
+    private final MappedArray myReferrerStarts;     // start in myReferrers by the object number, one extra at the end (long)
+    private final MappedArray myReferrers;          // object numbers grouped by the referenced object (int)
+
+    private HeapIndex(VirtualMachineImpl vm, long[] classAddresses, long[] classStarts,
+                      MappedArray addresses, MappedArray instances,
+                      MappedArray sortedAddresses, MappedArray sortedObjects,
+                      MappedArray referrerStarts, MappedArray referrers) {
+        myVm = vm;
+        myClassAddresses = classAddresses;
+        myClassNumbers = new LongMap<Integer>(classAddresses.length);
+        for (int i = 0; i < classAddresses.length; i++) {
+            myClassNumbers.put(classAddresses[i], i);
+        }
+        myClassStarts = classStarts;
+        myAddresses = addresses;
+        myInstances = instances;
+        mySortedAddresses = sortedAddresses;
+        mySortedObjects = sortedObjects;
+        myReferrerStarts = referrerStarts;
+        myReferrers = referrers;
+    }
+
+    /**
+     * Walks the whole heap, should be called under the vm lock
+     */
+    static HeapIndex build(VirtualMachineImpl vm, File directory) throws IOException {
+        List<MappedArray> arrays = new ArrayList<MappedArray>();
+        boolean success = false;
+        try {
+            Scanner scanner = new Scanner(vm, directory, arrays);
+            vm.saObjectHeap().iterate(scanner);
+            if (scanner.myError != null) {
+                throw scanner.myError;
+            }
+            long objectCount = scanner.myAddresses.size();
+
+            // instances by class
+            int classCount = scanner.myClassNumbers.size();
+            long[] classStarts = new long[classCount + 1];
+            for (int i = 0; i < classCount; i++) {
+                classStarts[i + 1] = classStarts[i] + scanner.myClassCounts[i];
+            }
+            long[] cursors = Arrays.copyOf(classStarts, classCount);
+            MappedArray instances = create(arrays, directory, false);
+            instances.resize(objectCount);
+            for (long i = 0; i < objectCount; i++) {
+                checkpoint(vm, i);
+                instances.setInt(cursors[scanner.myClasses.getInt(i)]++, (int) i);
+            }
+            close(arrays, scanner.myClasses);
+
+            // address lookup: the heap is walked in a few ascending runs (spaces, regions), merge them
+            MappedArray sortedAddresses = create(arrays, directory, true);
+            MappedArray sortedObjects = create(arrays, directory, false);
+            sortedAddresses.resize(objectCount);
+            sortedObjects.resize(objectCount);
+            new RunMerger(scanner.myAddresses, scanner.myRunStarts).merge(vm, sortedAddresses, sortedObjects);
+
+            // referrers by the referenced object
+            MappedArray edgeTargets = create(arrays, directory, false);
+            MappedArray referrerStarts = create(arrays, directory, true);
+            long edgeCount = scanner.myEdgeSources.size();
+            edgeTargets.resize(edgeCount);
+            referrerStarts.resize(objectCount + 1);
+            for (long i = 0; i < edgeCount; i++) {
+                checkpoint(vm, i);
+                int target = find(sortedAddresses, sortedObjects, scanner.myEdgeTargets.getLong(i));
+                edgeTargets.setInt(i, target);
+                if (target >= 0) {
+                    referrerStarts.setLong(target, referrerStarts.getLong(target) + 1);
+                }
+            }
+            close(arrays, scanner.myEdgeTargets);
+            // ends first, filling from the end moves every one of them back to the start
+            long referrerCount = 0;
+            for (long i = 0; i < objectCount; i++) {
+                checkpoint(vm, i);
+                referrerCount += referrerStarts.getLong(i);
+                referrerStarts.setLong(i, referrerCount);
+            }
+            referrerStarts.setLong(objectCount, referrerCount);
+            MappedArray referrers = create(arrays, directory, false);
+            referrers.resize(referrerCount);
+            for (long i = edgeCount - 1; i >= 0; i--) {
+                checkpoint(vm, i);
+                int target = edgeTargets.getInt(i);
+                if (target >= 0) {
+                    long position = referrerStarts.getLong(target) - 1;
+                    referrerStarts.setLong(target, position);
+                    referrers.setInt(position, scanner.myEdgeSources.getInt(i));
+                }
+            }
+            close(arrays, edgeTargets);
+            close(arrays, scanner.myEdgeSources);
+
+            HeapIndex index = new HeapIndex(vm, Arrays.copyOf(scanner.myClassAddresses, classCount), classStarts,
+                    scanner.myAddresses, instances, sortedAddresses, sortedObjects, referrerStarts, referrers);
+            success = true;
+            return index;
+        } finally {
+            if (!success) {
+                for (MappedArray array : arrays) {
+                    try {
+                        array.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps the index saved next to the core file, or builds and saves it if there is none or the core has changed
+     */
+    static HeapIndex open(VirtualMachineImpl vm, File core, File directory) throws IOException {
+        File indexDirectory = new File(directory, core.getName() + ".sa-jdwp");
+        long[] key = coreKey(core);
+        HeapIndex index = load(vm, indexDirectory, key);
+        if (index != null) {
+            return index;
+        }
+        File header = new File(indexDirectory, HEADER_FILE);
+        if (!indexDirectory.isDirectory() && !indexDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + indexDirectory);
+        }
+        if (header.exists() && !header.delete()) {
+            throw new IOException("Unable to delete " + header);
+        }
+        // temporary files in the same directory, so that they can be renamed in place
+        index = build(vm, indexDirectory);
+        try {
+            index.save(indexDirectory, key);
+        } catch (IOException e) {
+            System.err.println("Unable to save the heap index into " + indexDirectory + ": " + e);
+        }
+        return index;
+    }
+
+    private static long[] coreKey(File core) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] start = new byte[(int) Math.min(CORE_KEY_BYTES, core.length())];
+        RandomAccessFile file = new RandomAccessFile(core, "r");
+        try {
+            file.readFully(start);
+        } finally {
+            file.close();
+        }
+        crc.update(start);
+        return new long[]{core.length(), core.lastModified(), crc.getValue()};
+    }
+
+    /**
+     * Returns null if there is no index for the core with this key
+     */
+    private static HeapIndex load(VirtualMachineImpl vm, File indexDirectory, long[] key) {
+        File header = new File(indexDirectory, HEADER_FILE);
+        if (!header.isFile()) {
+            return null;
+        }
+        List<MappedArray> arrays = new ArrayList<MappedArray>();
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(header)));
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION ||
+                    input.readBoolean() != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN)) {
+                    return null;
+                }
+                for (long value : key) {
+                    if (input.readLong() != value) {
+                        return null;
+                    }
+                }
+                long objectCount = input.readLong();
+                long referrerCount = input.readLong();
+                long[] classAddresses = new long[input.readInt()];
+                long[] classStarts = new long[classAddresses.length + 1];
+                for (int i = 0; i < classAddresses.length; i++) {
+                    classAddresses[i] = input.readLong();
+                }
+                for (int i = 0; i < classStarts.length; i++) {
+                    classStarts[i] = input.readLong();
+                }
+                long[] sizes = {objectCount, objectCount, objectCount, objectCount, objectCount + 1, referrerCount};
+                boolean[] longs = {true, false, true, false, true, false};
+                for (int i = 0; i < ARRAY_FILES.length; i++) {
+                    File file = new File(indexDirectory, ARRAY_FILES[i]);
+                    arrays.add(longs[i] ? MappedArray.openLongs(file, sizes[i]) : MappedArray.openInts(file, sizes[i]));
+                }
+                HeapIndex index = new HeapIndex(vm, classAddresses, classStarts,
+                        arrays.get(0), arrays.get(1), arrays.get(2), arrays.get(3), arrays.get(4), arrays.get(5));
+                arrays.clear();
+                return index;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to load the heap index from " + indexDirectory + ": " + e);
+            return null;
+        } finally {
+            for (MappedArray array : arrays) {
+                try {
+                    array.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the array files under the fixed names and writes the header last, the index is valid only when the header exists.
+     * Two servers saving the index of the same core at once write the same data.
+     */
+    private void save(File indexDirectory, long[] key) throws IOException {
+        MappedArray[] arrays = {myAddresses, myInstances, mySortedAddresses, mySortedObjects, myReferrerStarts, myReferrers};
+        for (int i = 0; i < arrays.length; i++) {
+            File file = new File(indexDirectory, ARRAY_FILES[i]);
+            if (!arrays[i].keep(file)) {
+                throw new IOException("Unable to rename the index file to " + file);
+            }
+        }
+        File temporaryHeader = File.createTempFile("sa-jdwp", ".idx", indexDirectory);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryHeader)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+            for (long value : key) {
+                output.writeLong(value);
+            }
+            output.writeLong(myAddresses.size());
+            output.writeLong(myReferrers.size());
+            output.writeInt(myClassAddresses.length);
+            for (long address : myClassAddresses) {
+                output.writeLong(address);
+            }
+            for (long start : myClassStarts) {
+                output.writeLong(start);
+            }
+        } finally {
+            output.close();
+        }
+        File header = new File(indexDirectory, HEADER_FILE);
+        if (!temporaryHeader.renameTo(header)) {
+            temporaryHeader.delete();
+            throw new IOException("Unable to rename the index file to " + header);
+        }
+    }
+
+    private static MappedArray create(List<MappedArray> arrays, File directory, boolean longs) throws IOException {
+        MappedArray array = longs ? MappedArray.createLongs(directory) : MappedArray.createInts(directory);
+        arrays.add(array);
+        return array;
+    }
+
+    private static void close(List<MappedArray> arrays, MappedArray array) throws IOException {
+        arrays.remove(array);
+        array.close();
+    }
+
+    private static void checkpoint(VirtualMachineImpl vm, long i) {
+        if ((i & CHECKPOINT_MASK) == 0) {
+            vm.checkpoint();
+        }
+    }
+
+    /**
+     * Object number by its address, -1 if there is no such object
+     */
+    private static int find(MappedArray sortedAddresses, MappedArray sortedObjects, long address) {
+        long low = 0;
+        long high = sortedAddresses.size() - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            long value = sortedAddresses.getLong(middle);
+            if (value < address) {
+                low = middle + 1;
+            } else if (value > address) {
+                high = middle - 1;
+            } else {
+                return sortedObjects.getInt(middle);
+            }
+        }
+        return -1;
+    }
+
+    long instanceCount(ReferenceTypeImpl type) {
+        Integer number = myClassNumbers.get(myVm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(type.ref())));
+        return number != null ? myClassStarts[number + 1] - myClassStarts[number] : 0;
+    }
+
+    List<ObjectReferenceImpl> instances(ReferenceTypeImpl type, long maxInstances) {
+        Integer number = myClassNumbers.get(myVm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(type.ref())));
+        if (number == null) {
+            return Collections.emptyList();
+        }
+        long start = myClassStarts[number];
+        long end = myClassStarts[number + 1];
+        if (maxInstances > 0 && end - start > maxInstances) {
+            end = start + maxInstances;
+        }
+        List<ObjectReferenceImpl> objects = new ArrayList<ObjectReferenceImpl>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            checkpoint(myVm, i - start);
+            objects.add(mirror(myInstances.getInt(i)));
+        }
+        return objects;
+    }
+
+    List<ObjectReferenceImpl> referringObjects(ObjectReferenceImpl object, long maxReferrers) {
+        int number = find(mySortedAddresses, mySortedObjects, object.uniqueID());
+        if (number < 0) {
+            return Collections.emptyList();
+        }
+        List<ObjectReferenceImpl> objects = new ArrayList<ObjectReferenceImpl>(0);
+        long end = myReferrerStarts.getLong(number + 1);
+        int previous = -1;
+        for (long i = myReferrerStarts.getLong(number); i < end; i++) {
+            checkpoint(myVm, i);
+            // several references from one object are next to each other
+            int referrer = myReferrers.getInt(i);
+            if (referrer != previous) {
+                if (maxReferrers > 0 && objects.size() >= maxReferrers) {
+                    break;
+                }
+                objects.add(mirror(referrer));
+                previous = referrer;
+            }
+        }
+        return objects;
+    }
+
+    private ObjectReferenceImpl mirror(int object) {
+        return myVm.objectMirror(myAddresses.getLong(object));
+    }
+
+    @Override
+    public void close() throws IOException {
+        myAddresses.close();
+        myInstances.close();
+        mySortedAddresses.close();
+        mySortedObjects.close();
+        myReferrerStarts.close();
+        myReferrers.close();
+    }
+
+    private static final class Scanner extends HeapWalkVisitor {
+        private final VirtualMachineImpl myVm;
+        private final MappedArray myAddresses;
+        private final MappedArray myClasses;
+        private final MappedArray myEdgeSources;    // referring object number (int)
+        private final MappedArray myEdgeTargets;    // referenced address (long)
+        private final List<Long> myRunStarts = new ArrayList<Long>();
+        private final LongMap<Integer> myClassNumbers = new LongMap<Integer>();
+        private long[] myClassAddresses = new long[1024];
+        private int[] myClassCounts = new int[1024];
+        private OopField[][] myClassFields = new OopField[1024][];
+        private boolean[] myClassMirrors = new boolean[1024];
+        private long myLastAddress = Long.MAX_VALUE;
+        private IOException myError;
+
+        Scanner(VirtualMachineImpl vm, File directory, List<MappedArray> arrays) throws IOException {
+            super(vm);
+            myVm = vm;
+            myAddresses = create(arrays, directory, true);
+            myClasses = create(arrays, directory, false);
+            myEdgeSources = create(arrays, directory, false);
+            myEdgeTargets = create(arrays, directory, true);
+        }
+
+        @Override
+        boolean visit(Oop oop) {
+            try {
+                long size = myAddresses.size();
+                if (size == Integer.MAX_VALUE) {
+                    throw new IOException("Too many objects in the heap");
+                }
+                int object = (int) size;
+                long address = ObjectReferenceImpl.uniqueID(oop.getHandle(), myVm);
+                int classNumber;
+                try {
+                    classNumber = classNumber(oop.getKlass());
+                } catch (RuntimeException e) {
+                    // bad oop, the heap might be iterated not at a safepoint
+                    return false;
+                }
+                if (address < myLastAddress) {
+                    myRunStarts.add(size);
+                }
+                myLastAddress = address;
+                myAddresses.addLong(address);
+                myClasses.addInt(classNumber);
+                myClassCounts[classNumber]++;
+                try {
+                    addReferences(object, oop, classNumber);
+                } catch (RuntimeException e) {
+                    // same as above, keep the references found so far
+                }
+                return false;
+            } catch (IOException e) {
+                myError = e;
+                return true;
+            }
+        }
+
+        private void addReferences(int object, Oop oop, int classNumber) throws IOException {
+            if (oop instanceof ObjArray) {
+                ObjArray array = (ObjArray) oop;
+                long length = array.getLength();
+                for (int i = 0; i < length; i++) {
+                    addReference(object, array.getOopHandleAt(i));
+                }
+                return;
+            }
+            OopField[] fields = myClassFields[classNumber];
+            if (fields != null) {
+                for (OopField field : fields) {
+                    addReference(object, field.getValueAsOopHandle(oop));
+                }
+            }
+            if (myClassMirrors[classNumber]) {
+                Klass klass = CompatibilityHelper.INSTANCE.asKlass(oop);
+                if (klass instanceof InstanceKlass) {
+                    ReferenceTypeImpl type = myVm.referenceType(klass);
+                    Instance typeMirror = type.getJavaMirror();
+                    for (FieldImpl field : type.fields()) {
+                        if (field.isStatic() && field.ref().getFieldType().isOop()) {
+                            addReference(object, ((OopField) field.ref()).getValueAsOopHandle(typeMirror));
+                        }
+                    }
+                }
+            }
+        }
+
+        private void addReference(int object, OopHandle handle) throws IOException {
+            if (handle != null) {
+                myEdgeSources.addInt(object);
+                myEdgeTargets.addLong(ObjectReferenceImpl.uniqueID(handle, myVm));
+            }
+        }
+
+        private int classNumber(Klass klass) {
+            long klassAddress = myVm.getAddressValue(CompatibilityHelper.INSTANCE.getAddress(klass));
+            Integer number = myClassNumbers.get(klassAddress);
+            if (number != null) {
+                return number;
+            }
+            OopField[] fields = null;
+            boolean mirror = false;
+            if (klass instanceof InstanceKlass) {
+                try {
+                    List<OopField> oopFields = new ArrayList<OopField>();
+                    for (FieldImpl field : myVm.referenceType(klass).allFields()) {
+                        if (!field.isStatic() && field.ref().getFieldType().isOop()) {
+                            oopFields.add((OopField) field.ref());
+                        }
+                    }
+                    fields = oopFields.toArray(new OopField[oopFields.size()]);
+                } catch (RuntimeException e) {
+                    // the class is still counted, only the references from its instances are missing
+                }
+                mirror = "java/lang/Class".equals(klass.getName().asString());
+            }
+            int newNumber = myClassNumbers.size();
+            if (newNumber == myClassCounts.length) {
+                myClassAddresses = Arrays.copyOf(myClassAddresses, newNumber * 2);
+                myClassCounts = Arrays.copyOf(myClassCounts, newNumber * 2);
+                myClassFields = Arrays.copyOf(myClassFields, newNumber * 2);
+                myClassMirrors = Arrays.copyOf(myClassMirrors, newNumber * 2);
+            }
+            myClassAddresses[newNumber] = klassAddress;
+            myClassFields[newNumber] = fields;
+            myClassMirrors[newNumber] = mirror;
+            myClassNumbers.put(klassAddress, newNumber);
+            return newNumber;
+        }
+    }
+
+    /**
+     * Merges ascending runs of addresses with a binary heap of the runs keyed by their current address
+     */
+    private static final class RunMerger {
+        private final MappedArray myAddresses;
+        private final long[] myPositions;
+        private final long[] myEnds;
+        private final int[] myHeap;
+        private int myHeapSize = 0;
+
+        RunMerger(MappedArray addresses, List<Long> runStarts) {
+            myAddresses = addresses;
+            int runs = runStarts.size();
+            myPositions = new long[runs];
+            myEnds = new long[runs];
+            myHeap = new int[runs];
+            for (int i = 0; i < runs; i++) {
+                myPositions[i] = runStarts.get(i);
+                myEnds[i] = i + 1 < runs ? runStarts.get(i + 1) : addresses.size();
+                myHeap[myHeapSize++] = i;
+                siftUp(myHeapSize - 1);
+            }
+        }
+
+        void merge(VirtualMachineImpl vm, MappedArray sortedAddresses, MappedArray sortedObjects) {
+            for (long i = 0; myHeapSize > 0; i++) {
+                checkpoint(vm, i);
+                int run = myHeap[0];
+                long position = myPositions[run]++;
+                sortedAddresses.setLong(i, myAddresses.getLong(position));
+                sortedObjects.setInt(i, (int) position);
+                if (myPositions[run] == myEnds[run]) {
+                    myHeap[0] = myHeap[--myHeapSize];
+                }
+                siftDown(0);
+            }
+        }
+
+        private long key(int heapIndex) {
+            return myAddresses.getLong(myPositions[myHeap[heapIndex]]);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (key(parent) <= key(i)) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < myHeapSize && key(left) < key(smallest)) {
+                    smallest = left;
+                }
+                if (right < myHeapSize && key(right) < key(smallest)) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int run = myHeap[i];
+            myHeap[i] = myHeap[j];
+            myHeap[j] = run;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.oops.DefaultHeapVisitor;
+import sun.jvm.hotspot.oops.Oop;
+
+/**
+ * Heap visitor for long heap walks: every few objects lets waiting requests run and checks for cancellation
+ */
+abstract class HeapWalkVisitor extends DefaultHeapVisitor {
+    private static final int CHECKPOINT_INTERVAL = 1024;
+
+    private final VirtualMachineImpl myVm;
+    private int myCounter = 0;
+
+    HeapWalkVisitor(VirtualMachineImpl vm) {
+        myVm = vm;
+    }
+
+    @Override
+    public final boolean doObj(Oop oop) {
+        if (++myCounter == CHECKPOINT_INTERVAL) {
+            myCounter = 0;
+            myVm.checkpoint();
+        }
+        return visit(oop);
+    }
+
+    /**
+     * Same as doObj, return true to stop the iteration
+     */
+    abstract boolean visit(Oop oop);
+}
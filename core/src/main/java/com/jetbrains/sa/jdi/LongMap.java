@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+
+package com.jetbrains.sa.jdi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressing hash map with primitive long keys (linear probing), no boxing and no entry objects.
+ * Null values are not allowed, a null value marks a free slot.
+ */
+final class LongMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] myKeys;
+    private Object[] myValues;
+    private int mySize;
+    private int myMask;
+
+    LongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongMap(int expectedSize) {
+        allocate(tableSize(expectedSize));
+    }
+
+    private static int tableSize(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        // keep the load factor under 1/2
+        while (capacity < expectedSize * 2L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        myKeys = new long[capacity];
+        myValues = new Object[capacity];
+        myMask = capacity - 1;
+    }
+
+    private int slot(long key) {
+        // object and klass addresses are aligned, mix all the bits
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & myMask;
+    }
+
+    int size() {
+        return mySize;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        long[] keys = myKeys;
+        Object[] values = myValues;
+        for (int i = slot(key); ; i = (i + 1) & myMask) {
+            Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (V) value;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null values are not supported");
+        }
+        int i = slot(key);
+        for (; myValues[i] != null; i = (i + 1) & myMask) {
+            if (myKeys[i] == key) {
+                V old = (V) myValues[i];
+                myValues[i] = value;
+                return old;
+            }
+        }
+        myKeys[i] = key;
+        myValues[i] = value;
+        if (++mySize * 2 > myValues.length) {
+            rehash(myValues.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int i = slot(key);
+        for (; myValues[i] != null; i = (i + 1) & myMask) {
+            if (myKeys[i] == key) {
+                V old = (V) myValues[i];
+                myValues[i] = null;
+                mySize--;
+                shiftBack(i);
+                return old;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the entries following the freed slot back so that all of them are still reachable from their home slot
+     */
+    private void shiftBack(int free) {
+        for (int i = (free + 1) & myMask; myValues[i] != null; i = (i + 1) & myMask) {
+            int home = slot(myKeys[i]);
+            // the entry can move only if its home slot is not in (free, i]
+            if (free <= i ? (home <= free || home > i) : (home <= free && home > i)) {
+                myKeys[free] = myKeys[i];
+                myValues[free] = myValues[i];
+                myValues[i] = null;
+                free = i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = myKeys;
+        Object[] values = myValues;
+        allocate(capacity);
+        for (int j = 0; j < values.length; j++) {
+            if (values[j] != null) {
+                int i = slot(keys[j]);
+                while (myValues[i] != null) {
+                    i = (i + 1) & myMask;
+                }
+                myKeys[i] = keys[j];
+                myValues[i] = values[j];
+            }
+        }
+    }
+
+    void clear() {
+        if (mySize > 0) {
+            allocate(MIN_CAPACITY);
+            mySize = 0;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        List<V> result = new ArrayList<V>(mySize);
+        for (Object value : myValues) {
+            if (value != null) {
+                result.add((V) value);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Growable array of ints or longs in a memory mapped file: outside of the java heap
+ * and not limited by the direct memory size, the os pages it in and out as needed.
+ * The file is mapped in fixed size segments, a temporary file is deleted on close unless it is {@link #keep kept}.
+ * Arrays opened from existing files are read only.
+ */
+final class MappedArray implements Closeable {
+    private static final int SEGMENT_SHIFT = 26; // 64 MB
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private File myFile;
+    private final RandomAccessFile myRandomAccessFile;
+    private final int myElementShift;
+    private boolean myTemporary;
+    private final boolean myReadOnly;
+    private ByteBuffer[] mySegments = new ByteBuffer[0];
+    private long mySize = 0;
+
+    private MappedArray(File file, int elementShift, boolean temporary, boolean readOnly) throws IOException {
+        myFile = file;
+        myRandomAccessFile = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        myElementShift = elementShift;
+        myTemporary = temporary;
+        myReadOnly = readOnly;
+    }
+
+    static MappedArray createInts(File directory) throws IOException {
+        return createTemporary(directory, 2);
+    }
+
+    static MappedArray createLongs(File directory) throws IOException {
+        return createTemporary(directory, 3);
+    }
+
+    private static MappedArray createTemporary(File directory, int elementShift) throws IOException {
+        File file = File.createTempFile("sa-jdwp", ".idx", directory);
+        file.deleteOnExit();
+        return new MappedArray(file, elementShift, true, false);
+    }
+
+    static MappedArray openInts(File file, long size) throws IOException {
+        return open(file, 2, size);
+    }
+
+    static MappedArray openLongs(File file, long size) throws IOException {
+        return open(file, 3, size);
+    }
+
+    private static MappedArray open(File file, int elementShift, long size) throws IOException {
+        MappedArray array = new MappedArray(file, elementShift, false, true);
+        try {
+            if (array.myRandomAccessFile.length() < size << elementShift) {
+                throw new IOException(file + " is too short");
+            }
+            array.ensureCapacity(size << elementShift);
+        } catch (IOException e) {
+            array.close();
+            throw e;
+        }
+        array.mySize = size;
+        return array;
+    }
+
+    long size() {
+        return mySize;
+    }
+
+    /**
+     * Changes the size, new elements are zero
+     */
+    void resize(long size) throws IOException {
+        ensureCapacity(size << myElementShift);
+        mySize = size;
+    }
+
+    private void ensureCapacity(long bytes) throws IOException {
+        int segments = (int) ((bytes + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        if (segments > mySegments.length) {
+            ByteBuffer[] newSegments = new ByteBuffer[segments];
+            System.arraycopy(mySegments, 0, newSegments, 0, mySegments.length);
+            FileChannel channel = myRandomAccessFile.getChannel();
+            for (int i = mySegments.length; i < segments; i++) {
+                long offset = (long) i << SEGMENT_SHIFT;
+                if (myReadOnly) {
+                    newSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_SIZE, channel.size() - offset));
+                } else {
+                    // the file grows as needed, with zeros
+                    newSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, SEGMENT_SIZE);
+                }
+                newSegments[i].order(ByteOrder.nativeOrder());
+            }
+            mySegments = newSegments;
+        }
+    }
+
+    int getInt(long index) {
+        long position = index << 2;
+        return mySegments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & SEGMENT_MASK));
+    }
+
+    void setInt(long index, int value) {
+        long position = index << 2;
+        mySegments[(int) (position >>> SEGMENT_SHIFT)].putInt((int) (position & SEGMENT_MASK), value);
+    }
+
+    void addInt(int value) throws IOException {
+        ensureCapacity((mySize + 1) << 2);
+        setInt(mySize++, value);
+    }
+
+    long getLong(long index) {
+        long position = index << 3;
+        return mySegments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+    }
+
+    void setLong(long index, long value) {
+        long position = index << 3;
+        mySegments[(int) (position >>> SEGMENT_SHIFT)].putLong((int) (position & SEGMENT_MASK), value);
+    }
+
+    void addLong(long value) throws IOException {
+        ensureCapacity((mySize + 1) << 3);
+        setLong(mySize++, value);
+    }
+
+    /**
+     * Moves the temporary file to the given place and keeps it on close, returns false if it could not be moved
+     */
+    boolean keep(File file) {
+        if (!myFile.renameTo(file)) {
+            return false;
+        }
+        myFile = file;
+        myTemporary = false;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mySegments = new ByteBuffer[0];
+        mySize = 0;
+        myRandomAccessFile.close();
+        // mapped segments keep the file open until they are collected on windows
+        if (myTemporary && !myFile.delete()) {
+            myFile.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+
+package com.jetbrains.sa.jdi;
+
+/**
+ * Object mirrors by id, bounded by an estimated memory budget, evicted with the CLOCK algorithm:
+ * mirrors used since the last pass of the clock hand get a second chance,
+ * so one-off mirrors created by heap walks do not push out the ones the debugger keeps looking at.
+ * Evicted mirrors are created again from the address when needed.
+ * Mirrors pinned by the debugger (ObjectReference.DisableCollection) are never evicted.
+ * The cache is shared by all the debugger sessions, a mirror stays pinned until every session that pinned it unpins it.
+ * Not thread safe, accessed under the vm lock.
+ */
+final class ObjectMirrorCache {
+    // mirror with its oop and handle, the map and the clock slots, roughly
+    static final int ESTIMATED_MIRROR_SIZE = 128;
+
+    private final LongMap<ObjectReferenceImpl> myMirrors;
+    private final LongMap<ObjectReferenceImpl> myPinned = new LongMap<ObjectReferenceImpl>();
+    // the clock: ids of the cached mirrors and their "used" bits
+    private final long[] myIds;
+    private final boolean[] myUsed;
+    private final boolean[] myOccupied;
+    private int myHand = 0;
+
+    private long myHits = 0;
+    private long myMisses = 0;
+    private long myEvictions = 0;
+
+    ObjectMirrorCache(long maxBytes) {
+        int capacity = (int) Math.min(Math.max(maxBytes / ESTIMATED_MIRROR_SIZE, 1), Integer.MAX_VALUE / 2);
+        myMirrors = new LongMap<ObjectReferenceImpl>(Math.min(capacity, 1024));
+        myIds = new long[capacity];
+        myUsed = new boolean[capacity];
+        myOccupied = new boolean[capacity];
+    }
+
+    ObjectReferenceImpl get(long id) {
+        ObjectReferenceImpl mirror = myMirrors.get(id);
+        if (mirror != null) {
+            myUsed[mirror.cacheSlot] = true;
+            myHits++;
+            return mirror;
+        }
+        mirror = myPinned.get(id);
+        if (mirror != null) {
+            myHits++;
+            return mirror;
+        }
+        myMisses++;
+        return null;
+    }
+
+    void put(long id, ObjectReferenceImpl mirror) {
+        int capacity = myIds.length;
+        while (myOccupied[myHand]) {
+            if (myUsed[myHand]) {
+                myUsed[myHand] = false;
+                myHand = (myHand + 1) % capacity;
+            } else {
+                myMirrors.remove(myIds[myHand]);
+                myOccupied[myHand] = false;
+                myEvictions++;
+            }
+        }
+        // new mirrors start unused, a mirror has to be asked for again to survive the next pass
+        myIds[myHand] = id;
+        myUsed[myHand] = false;
+        myOccupied[myHand] = true;
+        mirror.cacheSlot = myHand;
+        myMirrors.put(id, mirror);
+        myHand = (myHand + 1) % capacity;
+    }
+
+    void pin(long id, ObjectReferenceImpl mirror) {
+        ObjectReferenceImpl pinned = myPinned.get(id);
+        if (pinned == null) {
+            pinned = mirror;
+            myPinned.put(id, pinned);
+        }
+        pinned.pinCount++;
+    }
+
+    void unpin(long id) {
+        ObjectReferenceImpl pinned = myPinned.get(id);
+        if (pinned != null && --pinned.pinCount <= 0) {
+            pinned.pinCount = 0;
+            myPinned.remove(id);
+        }
+    }
+
+    /**
+     * Drops the mirror unless it is still pinned, the debugger session does not hold its id anymore
+     */
+    void dispose(long id) {
+        if (myPinned.get(id) != null) {
+            return;
+        }
+        ObjectReferenceImpl mirror = myMirrors.remove(id);
+        if (mirror != null) {
+            myOccupied[mirror.cacheSlot] = false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Object mirrors: " + myMirrors.size() + " cached (max " + myIds.length + "), " + myPinned.size() + " pinned, " +
+                myHits + " hits, " + myMisses + " misses, " + myEvictions + " evictions";
+    }
+}
@@ -47,6 +47,7 @@ import sun.jvm.hotspot.runtime.MonitorInfo;
 import sun.jvm.hotspot.runtime.ObjectMonitor;
 import sun.jvm.hotspot.utilities.Assert;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class ObjectReferenceImpl extends ValueImpl {
@@ -56,6 +57,10 @@ public class ObjectReferenceImpl extends ValueImpl {
     private ThreadReferenceImpl owningThread = null;
     private List<ThreadReferenceImpl> waitingThreads = null;
     private int entryCount = 0;
+    // position in the ObjectMirrorCache clock
+    int cacheSlot = -1;
+    // number of debugger sessions keeping the mirror pinned in the ObjectMirrorCache
+    int pinCount = 0;
 
     ObjectReferenceImpl(ReferenceTypeImpl type, Oop oRef) {
         referenceType = type;
@@ -101,6 +106,28 @@ public class ObjectReferenceImpl extends ValueImpl {
         }
     }
 
+    /**
+     * Values of the fields in the same order, primitive instance fields are decoded from a single read of the whole object
+     */
+    public List<ValueImpl> getValues(List<FieldImpl> fields) {
+        List<ValueImpl> values = new ArrayList<ValueImpl>(fields.size());
+        ByteBuffer body = null;
+        boolean bodyRead = fields.size() < 2;
+        for (FieldImpl field : fields) {
+            if (field.isStatic()) {
+                values.add(referenceType.getValue(field));
+            } else {
+                referenceType.validateFieldAccess(field);
+                if (!bodyRead) {
+                    bodyRead = true;
+                    body = vm().readMemory(saObject.getHandle(), 0, saObject.getObjectSize());
+                }
+                values.add(field.getValue(saObject, body));
+            }
+        }
+        return values;
+    }
+
     static long uniqueID(OopHandle handle, VirtualMachineImpl vm) {
         return vm.getAddressValue(handle);
     }
@@ -153,13 +180,17 @@ public class ObjectReferenceImpl extends ValueImpl {
         if (maxReferrers < 0) {
             throw new IllegalArgumentException("maxReferrers is less than zero: " + maxReferrers);
         }
+        HeapIndex index = vm().heapIndex();
+        if (index != null) {
+            return index.referringObjects(this, maxReferrers);
+        }
         final OopHandle thisHandle = saObject.getHandle();
         final List<ObjectReferenceImpl> objects = new ArrayList<ObjectReferenceImpl>(0);
         final long max = maxReferrers;
-        vm().saObjectHeap().iterate(new DefaultHeapVisitor() {
+        vm().saObjectHeap().iterate(new HeapWalkVisitor(vm()) {
             private long refCount = 0;
 
-            public boolean doObj(Oop oop) {
+            boolean visit(Oop oop) {
                 try {
                     final ObjectReferenceImpl objref = vm().objectMirror(oop);
                     objref.visitReferences(new HandleVisitor() {
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.Page;
+import sun.jvm.hotspot.debugger.PageFetcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the memory of a live linux process from /proc/&lt;pid&gt;/mem.
+ * sa reads it with ptrace one word at a time on its debugger thread, a positional read of the file
+ * copies a whole page or block in one system call. The process is already attached by sa,
+ * which is what the kernel checks when the file is opened.
+ * <p>
+ * Reads of unmapped or partially mapped memory fail, those are passed to the sa fetcher
+ * which knows how to report them.
+ */
+final class ProcMemFetcher implements PageFetcher, Closeable {
+    private static final boolean ENABLED = !"false".equals(System.getProperty("sa.jdwp.read.proc.mem"));
+
+    private final PageFetcher myFetcher;
+    private final RandomAccessFile myFile;
+    private final FileChannel myChannel;
+    // reused for all the reads, grows to the biggest block
+    private ByteBuffer myBuffer = ByteBuffer.allocateDirect(4096);
+    private long myReads = 0;
+    private long myFallbacks = 0;
+
+    private ProcMemFetcher(PageFetcher fetcher, RandomAccessFile file) {
+        myFetcher = fetcher;
+        myFile = file;
+        myChannel = file.getChannel();
+    }
+
+    /**
+     * Returns a fetcher reading the memory of the process, or the given one if the memory file is not available
+     */
+    static PageFetcher wrap(PageFetcher fetcher, int pid) {
+        if (!ENABLED || pid <= 0 || !System.getProperty("os.name").startsWith("Linux")) {
+            return fetcher;
+        }
+        File memFile = new File("/proc/" + pid + "/mem");
+        try {
+            return new ProcMemFetcher(fetcher, new RandomAccessFile(memFile, "r"));
+        } catch (IOException e) {
+            System.err.println("Unable to open " + memFile + ", reading the memory with ptrace: " + e);
+            return fetcher;
+        }
+    }
+
+    @Override
+    public synchronized Page fetchPage(long pageBaseAddress, long numBytes) {
+        if (pageBaseAddress >= 0 && numBytes <= Integer.MAX_VALUE) {
+            myReads++;
+            int size = (int) numBytes;
+            if (myBuffer.capacity() < size) {
+                myBuffer = ByteBuffer.allocateDirect(size);
+            }
+            ByteBuffer buffer = myBuffer;
+            buffer.clear().limit(size);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (myChannel.read(buffer, pageBaseAddress + buffer.position()) <= 0) {
+                        break;
+                    }
+                }
+                if (!buffer.hasRemaining()) {
+                    byte[] data = new byte[size];
+                    buffer.flip();
+                    buffer.get(data);
+                    return new Page(pageBaseAddress, data);
+                }
+            } catch (IOException ignored) {
+                // EIO on unmapped memory
+            }
+            myFallbacks++;
+        }
+        return myFetcher.fetchPage(pageBaseAddress, numBytes);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return myReads + " reads from the process memory file, " + myFallbacks + " of them failed";
+    }
+
+    @Override
+    public void close() throws IOException {
+        myFile.close();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdi;
+
+import sun.jvm.hotspot.debugger.Debugger;
+import sun.jvm.hotspot.debugger.DebuggerBase;
+import sun.jvm.hotspot.debugger.Page;
+import sun.jvm.hotspot.debugger.PageCache;
+import sun.jvm.hotspot.debugger.PageFetcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+/**
+ * Replacement of the sa page cache of the target memory reads: bigger, counts hits and misses,
+ * and optionally reads the memory in blocks of several pages. A block is cut into pages when they are requested,
+ * pages are still the os page size so that a partially unmapped block does not hide the mapped part,
+ * such blocks are read page by page. Blocks are off by default, ptrace reads take time proportional to the size.
+ * <p>
+ * The memory of a live linux process is read from its memory file instead of ptrace, see {@link ProcMemFetcher},
+ * elf cores are mapped into memory, see {@link CoreFileFetcher}.
+ * <p>
+ * sa keeps the cache in a private field of the debugger, the cache is replaced there after the attach.
+ * The target does not run while attached, so the cache is never invalidated.
+ */
+final class ReadCache extends PageCache {
+    private static final long CACHE_SIZE = Long.getLong("sa.jdwp.read.cache.size", 64) * 1024 * 1024;
+    private static final long BLOCK_SIZE = Long.getLong("sa.jdwp.read.block.size", 0) * 1024; // 0 - one page
+
+    private final BlockFetcher myFetcher;
+    private long myLookups = 0;
+
+    private ReadCache(long pageSize, long maxPages, BlockFetcher fetcher) {
+        super(pageSize, maxPages, fetcher);
+        myFetcher = fetcher;
+    }
+
+    /**
+     * Returns the installed cache or null if the debugger has no cache or it could not be replaced.
+     * The pid is that of the attached live process, 0 for cores, the core file is null for live processes
+     */
+    static ReadCache install(Debugger debugger, int pid, File coreFile) {
+        if (CACHE_SIZE <= 0 || !(debugger instanceof DebuggerBase)) {
+            return null;
+        }
+        try {
+            Field cacheField = DebuggerBase.class.getDeclaredField("cache");
+            cacheField.setAccessible(true);
+            PageCache cache = (PageCache) cacheField.get(debugger);
+            if (cache == null) {
+                return null; // caching is disabled for this debugger
+            }
+            Field pageSizeField = PageCache.class.getDeclaredField("pageSize");
+            pageSizeField.setAccessible(true);
+            Field fetcherField = PageCache.class.getDeclaredField("fetcher");
+            fetcherField.setAccessible(true);
+            long pageSize = pageSizeField.getLong(cache);
+            PageFetcher fetcher = (PageFetcher) fetcherField.get(cache);
+            fetcher = coreFile != null ? CoreFileFetcher.wrap(fetcher, coreFile) : ProcMemFetcher.wrap(fetcher, pid);
+            long blockSize = Long.highestOneBit(Math.max(BLOCK_SIZE, pageSize));
+            ReadCache readCache = new ReadCache(pageSize, Math.max(1, CACHE_SIZE / pageSize), new BlockFetcher(fetcher, blockSize));
+            cacheField.set(debugger, readCache);
+            return readCache;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Releases the memory file of the process or the mapped core
+     */
+    void close() {
+        PageFetcher fetcher = myFetcher.myFetcher;
+        if (fetcher instanceof Closeable) {
+            try {
+                ((Closeable) fetcher).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public synchronized byte[] getData(long startAddress, long numBytes) {
+        myLookups++;
+        return super.getData(startAddress, numBytes);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(long address) {
+        myLookups++;
+        return super.getBoolean(address);
+    }
+
+    @Override
+    public synchronized byte getByte(long address) {
+        myLookups++;
+        return super.getByte(address);
+    }
+
+    @Override
+    public synchronized short getShort(long address, boolean bigEndian) {
+        myLookups++;
+        return super.getShort(address, bigEndian);
+    }
+
+    @Override
+    public synchronized char getChar(long address, boolean bigEndian) {
+        myLookups++;
+        return super.getChar(address, bigEndian);
+    }
+
+    @Override
+    public synchronized int getInt(long address, boolean bigEndian) {
+        myLookups++;
+        return super.getInt(address, bigEndian);
+    }
+
+    @Override
+    public synchronized long getLong(long address, boolean bigEndian) {
+        myLookups++;
+        return super.getLong(address, bigEndian);
+    }
+
+    @Override
+    public synchronized float getFloat(long address, boolean bigEndian) {
+        myLookups++;
+        return super.getFloat(address, bigEndian);
+    }
+
+    @Override
+    public synchronized double getDouble(long address, boolean bigEndian) {
+        myLookups++;
+        return super.getDouble(address, bigEndian);
+    }
+
+    @Override
+    public synchronized String toString() {
+        BlockFetcher fetcher = myFetcher;
+        return "Read cache: " + myLookups + " reads, " + (myLookups - fetcher.myPageMisses) + " hits, " + fetcher.myPageMisses + " misses, " +
+               fetcher.myBlockReads + " block reads of " + fetcher.myBlockSize + " bytes, " + fetcher.myBlockHits + " pages from the read blocks" +
+               (fetcher.myFetcher instanceof Closeable ? ", " + fetcher.myFetcher : "");
+    }
+
+    /**
+     * Called under the cache lock
+     */
+    private static final class BlockFetcher implements PageFetcher {
+        // a few recent blocks, the reads alternate between the heap, metadata, stacks
+        private static final int BLOCKS = 8;
+
+        private final PageFetcher myFetcher;
+        private final long myBlockSize;
+        private final Page[] myBlocks = new Page[BLOCKS];
+        private int myNextBlock = 0;
+        private long myPageMisses = 0;
+        private long myBlockReads = 0;
+        private long myBlockHits = 0;
+
+        BlockFetcher(PageFetcher fetcher, long blockSize) {
+            myFetcher = fetcher;
+            myBlockSize = blockSize;
+        }
+
+        @Override
+        public Page fetchPage(long pageBaseAddress, long numBytes) {
+            myPageMisses++;
+            if (numBytes >= myBlockSize) {
+                return myFetcher.fetchPage(pageBaseAddress, numBytes);
+            }
+            long blockAddress = pageBaseAddress & -myBlockSize;
+            Page block = null;
+            for (Page b : myBlocks) {
+                if (b != null && b.getBaseAddress() == blockAddress) {
+                    block = b;
+                    myBlockHits++;
+                    break;
+                }
+            }
+            if (block == null) {
+                block = myFetcher.fetchPage(blockAddress, myBlockSize);
+                myBlockReads++;
+                myBlocks[myNextBlock] = block;
+                myNextBlock = (myNextBlock + 1) % BLOCKS;
+            }
+            if (!block.isMapped()) {
+                // at least a part is not mapped
+                return myFetcher.fetchPage(pageBaseAddress, numBytes);
+            }
+            byte[] data = new byte[(int) numBytes];
+            block.getDataAsBytes(pageBaseAddress, numBytes, data, 0);
+            return new Page(pageBaseAddress, data);
+        }
+    }
+}
@@ -55,11 +55,16 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
     private Instance javaMirror;
     private int           modifiers = -1;
     private String        signature = null;
+    private String        genericSignature = null;
+    private boolean       genericSignatureKnown = false;
     private String        typeName;
     private SoftReference<SDE> sdeRef = null;
     private SoftReference<List<FieldImpl>> fieldsCache;
     private SoftReference<List<FieldImpl>> allFieldsCache;
     private SoftReference<List<MethodImpl>> methodsCache;
+    // indexes of allFieldsCache and methodsCache by id, reset when the lists are rebuilt
+    private SoftReference<LongMap<FieldImpl>> fieldsByIdCache;
+    private SoftReference<LongMap<MethodImpl>> methodsByIdCache;
     private SoftReference<List<ReferenceTypeImpl>> nestedTypesCache;
     private SoftReference<List<MethodImpl>> methodInvokesCache;
     protected final VirtualMachineImpl vm;
@@ -89,12 +94,11 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
     MethodImpl getMethodMirror(sun.jvm.hotspot.oops.Method ref) {
         // SA creates new Method objects when they are referenced which means
         // that the incoming object might not be the same object as on our
-        // even though it is the same method. So do an address compare by
-        // calling equals rather than just reference compare.
-        for (MethodImpl method : methods()) {
-            if (ref.equals(method.ref())) {
-                return method;
-            }
+        // even though it is the same method. So look it up by the address
+        // rather than by reference.
+        MethodImpl cached = methodsById().get(MethodImpl.uniqueID(ref, vm));
+        if (cached != null) {
+            return cached;
         }
         Klass methodHolder = CompatibilityHelper.INSTANCE.getMethodHolder(ref);
         if (methodHolder.equals(CompatibilityHelper.INSTANCE.getMethodHandleKlass())) {
@@ -168,12 +172,14 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
     // refer to JvmtiEnv::GetClassSignature.
     // null is returned for array klasses.
     public String genericSignature() {
-        if (saKlass instanceof ArrayKlass) {
-            return null;
-        } else {
-            Symbol genSig = ((InstanceKlass)saKlass).getGenericSignature();
-            return (genSig != null)? genSig.asString() : null;
+        if (!genericSignatureKnown) {
+            if (!(saKlass instanceof ArrayKlass)) {
+                Symbol genSig = ((InstanceKlass)saKlass).getGenericSignature();
+                genericSignature = (genSig != null)? genSig.asString() : null;
+            }
+            genericSignatureKnown = true;
         }
+        return genericSignature;
     }
 
     public ClassLoaderReferenceImpl classLoader() {
@@ -186,8 +192,12 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
         return((modifiers() & ClassConstants.JVM_ACC_ABSTRACT) != 0);
     }
 
+    public int classStatus() {
+        return saKlass.getClassStatus();
+    }
+
     public boolean isPrepared() {
-        return (saKlass.getClassStatus() & JVMDIClassStatus.PREPARED) != 0;
+        return (classStatus() & JVMDIClassStatus.PREPARED) != 0;
     }
 
     final void checkPrepared() throws ClassNotPreparedException {
@@ -205,10 +215,9 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
     }
 
     public final FieldImpl fieldById(long id) throws ClassNotPreparedException {
-        for (FieldImpl field : allFields()) {
-            if (field.uniqueID() == id) {
-                return field;
-            }
+        FieldImpl field = fieldsById().get(id);
+        if (field != null) {
+            return field;
         }
         throw new IllegalStateException("Field with id " + id + " not found in " + name());
     }
@@ -288,15 +297,31 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
             }
             allFields = Collections.unmodifiableList(allFields);
             allFieldsCache = new SoftReference<List<FieldImpl>>(allFields);
+            fieldsByIdCache = null;
         }
         return allFields;
     }
 
-    public final MethodImpl methodById(long id) throws ClassNotPreparedException {
-        for (MethodImpl method : methods()) {
-            if (method.uniqueID() == id) {
-                return method;
+    private LongMap<FieldImpl> fieldsById() {
+        List<FieldImpl> allFields = allFields(); // resets the index if the list is created again
+        LongMap<FieldImpl> fieldsById = (fieldsByIdCache != null)? fieldsByIdCache.get() : null;
+        if (fieldsById == null) {
+            fieldsById = new LongMap<FieldImpl>(allFields.size());
+            for (FieldImpl field : allFields) {
+                // the first one wins, as with the search in the list
+                if (fieldsById.get(field.uniqueID()) == null) {
+                    fieldsById.put(field.uniqueID(), field);
+                }
             }
+            fieldsByIdCache = new SoftReference<LongMap<FieldImpl>>(fieldsById);
+        }
+        return fieldsById;
+    }
+
+    public final MethodImpl methodById(long id) throws ClassNotPreparedException {
+        MethodImpl method = methodsById().get(id);
+        if (method != null) {
+            return method;
         }
         throw new IllegalStateException("Method with id " + id + " not found in " + name());
     }
@@ -320,10 +345,25 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
             }
             methods = Collections.unmodifiableList(methods);
             methodsCache = new SoftReference<List<MethodImpl>>(methods);
+            methodsByIdCache = null;
         }
         return methods;
     }
 
+    // method ids are the addresses of the sa methods
+    private LongMap<MethodImpl> methodsById() {
+        List<MethodImpl> methods = methods(); // resets the index if the list is created again
+        LongMap<MethodImpl> methodsById = (methodsByIdCache != null)? methodsByIdCache.get() : null;
+        if (methodsById == null) {
+            methodsById = new LongMap<MethodImpl>(methods.size());
+            for (MethodImpl method : methods) {
+                methodsById.put(method.uniqueID(), method);
+            }
+            methodsByIdCache = new SoftReference<LongMap<MethodImpl>>(methodsById);
+        }
+        return methodsById;
+    }
+
     List<InterfaceTypeImpl> getInterfaces() {
         if (saKlass instanceof ArrayKlass) {
             // Actually, JLS says arrays implement Cloneable and Serializable
@@ -498,13 +538,17 @@ public abstract class ReferenceTypeImpl extends TypeImpl {
         if (isAbstract() || (this instanceof InterfaceTypeImpl)) {
             return Collections.emptyList();
         }
+        HeapIndex index = vm.heapIndex();
+        if (index != null) {
+            return index.instances(this, maxInstances);
+        }
         final List<ObjectReferenceImpl> objects = new ArrayList<ObjectReferenceImpl>(0);
 
         final Address givenKls = CompatibilityHelper.INSTANCE.getAddress(saKlass);
         final long max = maxInstances;
-        vm.saObjectHeap().iterate(new DefaultHeapVisitor() {
+        vm.saObjectHeap().iterate(new HeapWalkVisitor(vm) {
                 private long instCount = 0;
-                public boolean doObj(Oop oop) {
+                boolean visit(Oop oop) {
                     if (givenKls.equals(CompatibilityHelper.INSTANCE.getKlassAddress(oop))) {
                         objects.add(vm.objectMirror(oop));
                         instCount++;
@@ -48,10 +48,14 @@ import sun.jvm.hotspot.runtime.JavaThread;
 import sun.jvm.hotspot.runtime.VM;
 import sun.jvm.hotspot.utilities.Assert;
 
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.SoftReference;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class VirtualMachineImpl {
 
@@ -79,6 +83,29 @@ public class VirtualMachineImpl {
 
     VirtualMachineManager vmmgr;
 
+    // sa is not thread safe, all the requests are executed under this lock,
+    // fair so that long heap walks let other requests in (see checkpoint)
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private volatile Thread warmUpThread;
+
+    public ReentrantLock lock() {
+        return lock;
+    }
+
+    /**
+     * Called periodically by long operations: throws CancellationException if the current thread was interrupted,
+     * temporarily releases the lock if other requests are waiting for it
+     */
+    void checkpoint() {
+        if (Thread.interrupted()) {
+            throw new CancellationException("Cancelled");
+        }
+        if (lock.getHoldCount() == 1 && lock.hasQueuedThreads()) {
+            lock.unlock();
+            lock.lock();
+        }
+    }
+
     // Per-vm singletons for primitive types and for void.
     private final PrimitiveTypeImpl theBooleanType = new PrimitiveTypeImpl(JDWP.Tag.BOOLEAN);
     private final PrimitiveTypeImpl theByteType = new PrimitiveTypeImpl(JDWP.Tag.BYTE);
@@ -91,17 +118,38 @@ public class VirtualMachineImpl {
 
     final VoidValueImpl voidVal = new VoidValueImpl();
 
-    private final Map<Long, ReferenceTypeImpl>  typesById = new HashMap<Long, ReferenceTypeImpl>();
+    private final LongMap<ReferenceTypeImpl>  typesById = new LongMap<ReferenceTypeImpl>();
+    // same types by the internal name, there may be several classes with the same name in different class loaders
+    private final Map<String, List<ReferenceTypeImpl>> typesByName = new HashMap<String, List<ReferenceTypeImpl>>();
+    private List<ReferenceTypeImpl> allTypes;              // unmodifiable copy of typesById values, reset when a type is added
     private boolean   retrievedAllTypes = false;
+    // mirrors of all the classes are created on this many threads
+    private static final int ENUMERATION_THREADS = Integer.getInteger("sa.jdwp.enumeration.threads", 1);
+    private static final int ENUMERATION_CHUNK_SIZE = 1024;
     private List<ReferenceTypeImpl>      bootstrapClasses;      // all bootstrap classes
     private ArrayList<ThreadReferenceImpl> allThreads;
+    private LongMap<ThreadReferenceImpl> threadsById;              // filled together with allThreads
+    private LongMap<ThreadGroupReferenceImpl> threadGroupsById;    // groups of allThreads and their parents
     private ArrayList<ThreadGroupReferenceImpl> topLevelGroups;
     final   int       sequenceNumber;
 
-    // ObjectReference cache
-    // "objectsByID" protected by "synchronized(this)".
-    private final Map<Long, SoftObjectReference>            objectsByID = new HashMap<Long, SoftObjectReference>();
-    private final ReferenceQueue referenceQueue = new ReferenceQueue();
+    // ObjectReference cache, protected by the vm lock like the rest of the sa access
+    private static final long OBJECT_MIRRORS_CACHE_SIZE = Long.getLong("sa.jdwp.mirrors.cache.size", 64) * 1024 * 1024;
+    private final ObjectMirrorCache objectsByID = new ObjectMirrorCache(OBJECT_MIRRORS_CACHE_SIZE);
+
+    // target memory reads cache, null if the sa one could not be replaced
+    private ReadCache readCache;
+
+    // instances and referrers of all the objects, built on the first request that needs a heap walk
+    private static final boolean HEAP_INDEX = !"false".equals(System.getProperty("sa.jdwp.heap.index"));
+    // the index of a core is saved next to it by default, for reuse when the core is opened again
+    private static final String HEAP_INDEX_DIR = System.getProperty("sa.jdwp.heap.index.dir");
+    private File coreFile;
+    private HeapIndex heapIndex;
+    private boolean heapIndexFailed = false;
+    // the lock is released during the build, other requests wait for the build in progress instead of starting their own
+    private boolean heapIndexBuilding = false;
+    private final Condition heapIndexBuilt = lock.newCondition();
 
     // names of some well-known classes to jdi
     private final String javaLangString = "java/lang/String";
@@ -119,11 +167,12 @@ public class VirtualMachineImpl {
     final String javaLangCloneable = "java/lang/Cloneable";
     final String javaIoSerializable = "java/io/Serializable";
 
-    private void init() {
+    private void init(int pid) {
         saVM = VM.getVM();
         saUniverse = saVM.getUniverse();
         saSystemDictionary = saVM.getSystemDictionary();
         saObjectHeap = saVM.getObjectHeap();
+        readCache = ReadCache.install(saVM.getDebugger(), pid, coreFile);
     }
 
     static public VirtualMachineImpl createVirtualMachineForCorefile(VirtualMachineManager mgr,
@@ -141,7 +190,8 @@ public class VirtualMachineImpl {
         VirtualMachineImpl myvm = new VirtualMachineImpl(mgr, sequenceNumber);
         try {
             myvm.saAgent.attach(javaExecutableName, coreFileName);
-            myvm.init();
+            myvm.coreFile = new File(coreFileName).getAbsoluteFile();
+            myvm.init(0);
         } catch (Exception ee) {
             myvm.saAgent.detach();
             throw ee;
@@ -157,7 +207,7 @@ public class VirtualMachineImpl {
         VirtualMachineImpl myvm = new VirtualMachineImpl(mgr, sequenceNumber);
         try {
             myvm.saAgent.attach(pid);
-            myvm.init();
+            myvm.init(pid);
         } catch (Exception ee) {
             myvm.saAgent.detach();
             throw ee;
@@ -177,7 +227,7 @@ public class VirtualMachineImpl {
         VirtualMachineImpl myvm = new VirtualMachineImpl(mgr, sequenceNumber);
         try {
             myvm.saAgent.attach(server);
-            myvm.init();
+            myvm.init(0);
         } catch (Exception ee) {
             myvm.saAgent.detach();
             throw ee;
@@ -211,12 +261,23 @@ public class VirtualMachineImpl {
 
     public List<ReferenceTypeImpl> allClasses() {
         if (!retrievedAllTypes) {
+            List<Klass> newKlasses = new ArrayList<Klass>();
             for (Klass saKlass : CompatibilityHelper.INSTANCE.allClasses(saSystemDictionary, saVM)) {
-                referenceType(saKlass);
+                if (typesById.get(ReferenceTypeImpl.uniqueID(saKlass, this)) == null) {
+                    newKlasses.add(saKlass);
+                }
+            }
+            for (ReferenceTypeImpl type : createReferenceTypes(newKlasses)) {
+                if (typesById.get(type.uniqueID()) == null) {
+                    registerReferenceType(type);
+                }
             }
             retrievedAllTypes = true;
         }
-        return Collections.unmodifiableList(new ArrayList<ReferenceTypeImpl>(typesById.values()));
+        if (allTypes == null) {
+            allTypes = Collections.unmodifiableList(typesById.values());
+        }
+        return allTypes;
     }
 
     // classes loaded by bootstrap loader
@@ -244,13 +305,9 @@ public class VirtualMachineImpl {
             typeName = signature;
         }
 
-        List<ReferenceTypeImpl> list = new ArrayList<ReferenceTypeImpl>(1);
-        for (ReferenceTypeImpl type : allClasses()) {
-            if (type.name().equals(typeName)) {
-                list.add(type);
-            }
-        }
-        return list;
+        allClasses(); // make sure that all the types are known
+        List<ReferenceTypeImpl> list = typesByName.get(typeName);
+        return list != null ? Collections.unmodifiableList(list) : Collections.<ReferenceTypeImpl>emptyList();
     }
 
     ReferenceTypeImpl referenceType(Klass kk) {
@@ -261,7 +318,82 @@ public class VirtualMachineImpl {
         return retType;
     }
 
+    /**
+     * Creates the types and reads their names and signatures, on several threads if enabled and there are many of them.
+     * The types are not registered, the vm state is not thread safe.
+     * Neither are the type caches of sa (virtual constructors, vtables) filled on the first lookup of a klass type,
+     * so one klass of every type is read on this thread before the others are passed to the pool.
+     */
+    private List<ReferenceTypeImpl> createReferenceTypes(List<Klass> klasses) {
+        int chunks = (klasses.size() + ENUMERATION_CHUNK_SIZE - 1) / ENUMERATION_CHUNK_SIZE;
+        if (ENUMERATION_THREADS < 2 || chunks < 2) {
+            List<ReferenceTypeImpl> types = new ArrayList<ReferenceTypeImpl>(klasses.size());
+            for (Klass klass : klasses) {
+                types.add(createReferenceType(klass));
+            }
+            return types;
+        }
+        Set<Class<?>> warmedUp = new HashSet<Class<?>>();
+        for (Klass klass : klasses) {
+            if (warmedUp.add(klass.getClass())) {
+                ReferenceTypeImpl type = createReferenceType(klass);
+                type.name();
+                type.signature();
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(ENUMERATION_THREADS, chunks), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "JDWP class enumeration");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<ReferenceTypeImpl[]>> futures = new ArrayList<Future<ReferenceTypeImpl[]>>(chunks);
+            for (int start = 0; start < klasses.size(); start += ENUMERATION_CHUNK_SIZE) {
+                final List<Klass> chunk = klasses.subList(start, Math.min(start + ENUMERATION_CHUNK_SIZE, klasses.size()));
+                futures.add(executor.submit(new Callable<ReferenceTypeImpl[]>() {
+                    @Override
+                    public ReferenceTypeImpl[] call() {
+                        ReferenceTypeImpl[] types = new ReferenceTypeImpl[chunk.size()];
+                        for (int i = 0; i < types.length; i++) {
+                            ReferenceTypeImpl type = createReferenceType(chunk.get(i));
+                            // cached in the type, AllClasses needs them right away
+                            type.name();
+                            type.signature();
+                            types[i] = type;
+                        }
+                        return types;
+                    }
+                }));
+            }
+            List<ReferenceTypeImpl> types = new ArrayList<ReferenceTypeImpl>(klasses.size());
+            for (Future<ReferenceTypeImpl[]> future : futures) {
+                types.addAll(Arrays.asList(future.get()));
+            }
+            return types;
+        } catch (InterruptedException e) {
+            throw new CancellationException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private ReferenceTypeImpl addReferenceType(Klass kk) {
+        return registerReferenceType(createReferenceType(kk));
+    }
+
+    private ReferenceTypeImpl createReferenceType(Klass kk) {
         ReferenceTypeImpl newRefType;
         if (kk instanceof ObjArrayKlass || kk instanceof TypeArrayKlass) {
             newRefType = new ArrayTypeImpl(this, (ArrayKlass)kk);
@@ -274,22 +406,42 @@ public class VirtualMachineImpl {
         } else {
             throw new RuntimeException("should not reach here:" + kk);
         }
+        return newRefType;
+    }
 
+    private ReferenceTypeImpl registerReferenceType(ReferenceTypeImpl newRefType) {
         typesById.put(newRefType.uniqueID(), newRefType);
+        allTypes = null;
+        List<ReferenceTypeImpl> sameName = typesByName.get(newRefType.name());
+        if (sameName == null) {
+            sameName = new ArrayList<ReferenceTypeImpl>(1);
+            typesByName.put(newRefType.name(), sameName);
+        }
+        sameName.add(newRefType);
         return newRefType;
     }
 
     private List<ThreadReferenceImpl> getAllThreads() {
         if (allThreads == null) {
-            allThreads = new ArrayList<ThreadReferenceImpl>(10);  // Might be enough, might not be
+            ArrayList<ThreadReferenceImpl> threads = new ArrayList<ThreadReferenceImpl>(10);  // Might be enough, might not be
+            LongMap<ThreadReferenceImpl> threadsMap = new LongMap<ThreadReferenceImpl>();
+            LongMap<ThreadGroupReferenceImpl> groupsMap = new LongMap<ThreadGroupReferenceImpl>();
             for (JavaThread thread : CompatibilityHelper.INSTANCE.getThreads(saVM)) {
                 // refer to JvmtiEnv::GetAllThreads in jvmtiEnv.cpp.
                 // filter out the hidden-from-external-view threads.
                 if (!thread.isHiddenFromExternalView()) {
                     ThreadReferenceImpl myThread = threadMirror(thread);
-                    allThreads.add(myThread);
+                    threads.add(myThread);
+                    threadsMap.put(myThread.uniqueID(), myThread);
+                    ThreadGroupReferenceImpl group = myThread.threadGroup();
+                    while (group != null && groupsMap.put(group.uniqueID(), group) == null) {
+                        group = group.parent();
+                    }
                 }
             }
+            threadsById = threadsMap;
+            threadGroupsById = groupsMap;
+            allThreads = threads;
         }
         return allThreads;
     }
@@ -350,7 +502,37 @@ public class VirtualMachineImpl {
         return new DoubleValueImpl(value);
     }
 
+    /**
+     * Starts filling the caches in a background thread, steps are comma separated, see {@link CacheWarmUp}
+     */
+    public void startWarmUp(String steps) {
+        CacheWarmUp warmUp = new CacheWarmUp(this, steps);
+        if (!warmUp.isEmpty()) {
+            Thread thread = new Thread(warmUp, "JDWP cache warm-up");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            warmUpThread = thread;
+            thread.start();
+        }
+    }
+
     public void dispose() {
+        Thread warmUp = warmUpThread;
+        if (warmUp != null) {
+            warmUp.interrupt();
+        }
+        HeapIndex index = heapIndex;
+        if (index != null) {
+            heapIndex = null;
+            try {
+                index.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (readCache != null) {
+            readCache.close();
+        }
         saAgent.detach();
 //        notifyDispose();
     }
@@ -476,8 +658,17 @@ public class VirtualMachineImpl {
             return new long[size];
         }
 
-        saObjectHeap.iterate(new DefaultHeapVisitor() {
-            public boolean doObj(Oop oop) {
+        HeapIndex index = heapIndex();
+        if (index != null) {
+            long[] counts = new long[size];
+            for (int i = 0; i < size; i++) {
+                counts[i] = index.instanceCount(classes.get(i));
+            }
+            return counts;
+        }
+
+        saObjectHeap.iterate(new HeapWalkVisitor(this) {
+            boolean visit(Oop oop) {
                 Address klassAddress = CompatibilityHelper.INSTANCE.getKlassAddress(oop);
                 Long current = instanceMap.get(klassAddress);
                 if (current != null) {
@@ -576,24 +767,25 @@ public class VirtualMachineImpl {
         }
     }
 
-    private void processQueue() {
-        Reference ref;
-        while ((ref = referenceQueue.poll()) != null) {
-            removeObjectMirror((SoftObjectReference)ref);
-        }
-    }
-
     // Address value is used as uniqueID by ObjectReferenceImpl
     long getAddressValue(Address address) {
         return saVM.getDebugger().getAddressValue(address);
     }
 
-    private ObjectReferenceImpl getCachedObjectMirror(long id) {
-        // Handle any queue elements that are not strongly reachable
-        processQueue();
+    /**
+     * Copy of the target memory at the offset from the address, in the target byte order, read in one go through the read cache.
+     * Null if there is no cache
+     */
+    ByteBuffer readMemory(Address address, long offset, long size) {
+        if (readCache == null || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        byte[] data = readCache.getData(getAddressValue(address) + offset, size);
+        return ByteBuffer.wrap(data).order(saVM.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    }
 
-        SoftObjectReference ref = objectsByID.get(id);
-        return ref != null ? ref.object() : null;
+    private ObjectReferenceImpl getCachedObjectMirror(long id) {
+        return objectsByID.get(id);
     }
 
     private ObjectReferenceImpl createObjectMirror(long id, Oop key) {
@@ -649,14 +841,10 @@ public class VirtualMachineImpl {
             throw new RuntimeException("unexpected object type " + key);
         }
 
-        /*
-         * If there was no previous entry in the table, we add one here
-         * If the previous entry was cleared, we replace it here.
-         */
         if (Assert.ASSERTS_ENABLED) {
             Assert.that(id == object.uniqueID(), "Unique id does not match");
         }
-        objectsByID.put(id, new SoftObjectReference(id, object, referenceQueue));
+        objectsByID.put(id, object);
 
         return object;
     }
@@ -693,12 +881,76 @@ public class VirtualMachineImpl {
         return object;
     }
 
-    private void removeObjectMirror(SoftObjectReference ref) {
-        /*
-         * This will remove the soft reference if it has not been
-         * replaced in the cache.
-         */
-        objectsByID.remove(ref.key());
+    /**
+     * Keeps the mirror cached until {@link #enableCollection} is called as many times, pins of every session are counted.
+     * Returns false if the id is not an object
+     */
+    public boolean disableCollection(long id) {
+        ObjectReferenceImpl mirror = id != 0 ? objectMirror(id) : null;
+        if (mirror == null) {
+            return false;
+        }
+        objectsByID.pin(id, mirror);
+        return true;
+    }
+
+    public void enableCollection(long id) {
+        objectsByID.unpin(id);
+    }
+
+    /**
+     * The debugger does not hold the id anymore, the mirror is dropped unless pinned
+     */
+    public void disposeObject(long id) {
+        objectsByID.dispose(id);
+    }
+
+    /**
+     * Index of the heap, walks the whole heap on the first call unless the index of the core file was saved before.
+     * Null if disabled or could not be built, the callers walk the heap themselves then.
+     */
+    HeapIndex heapIndex() {
+        while (heapIndexBuilding) {
+            try {
+                heapIndexBuilt.await();
+            } catch (InterruptedException e) {
+                throw new CancellationException("Interrupted");
+            }
+        }
+        if (heapIndex == null && HEAP_INDEX && !heapIndexFailed) {
+            heapIndexBuilding = true;
+            try {
+                HeapIndex index = null;
+                if (coreFile != null) {
+                    try {
+                        index = HeapIndex.open(this, coreFile, HEAP_INDEX_DIR != null ? new File(HEAP_INDEX_DIR) : coreFile.getParentFile());
+                    } catch (IOException e) {
+                        // read only directory etc., use a temporary one
+                        System.err.println("Unable to open the heap index of " + coreFile + ": " + e);
+                    }
+                }
+                if (index == null) {
+                    index = HeapIndex.build(this, new File(HEAP_INDEX_DIR != null ? HEAP_INDEX_DIR : System.getProperty("java.io.tmpdir")));
+                }
+                heapIndex = index;
+            } catch (IOException e) {
+                e.printStackTrace();
+                heapIndexFailed = true;
+            } finally {
+                // a cancelled build is started again by the next request
+                heapIndexBuilding = false;
+                heapIndexBuilt.signalAll();
+            }
+        }
+        return heapIndex;
+    }
+
+    public String objectMirrorCacheStatistics() {
+        return objectsByID.toString();
+    }
+
+    public String readCacheStatistics() {
+        return readCache != null ? readCache.toString() : null;
     }
 
     ThreadReferenceImpl threadMirror(JavaThread jt) {
@@ -717,30 +969,11 @@ public class VirtualMachineImpl {
         return (ClassObjectReferenceImpl) objectMirror(id);
     }
 
-    // Use of soft refs and caching stuff here has to be re-examined.
-    //  It might not make sense for JDI - SA.
-    static private class SoftObjectReference extends SoftReference<ObjectReferenceImpl> {
-       Long key;
-
-       SoftObjectReference(Long key, ObjectReferenceImpl mirror, ReferenceQueue queue) {
-           super(mirror, queue);
-           this.key = key;
-       }
-
-        Long key() {
-           return key;
-       }
-
-       ObjectReferenceImpl object() {
-           return get();
-       }
-   }
-
     public ThreadReferenceImpl getThreadById(long id) {
-        for (ThreadReferenceImpl thread : allThreads()) {
-            if (thread.uniqueID() == id) {
-                return thread;
-            }
+        getAllThreads();
+        ThreadReferenceImpl thread = threadsById.get(id);
+        if (thread != null) {
+            return thread;
         }
         throw new IllegalStateException("Thread with id " + id + " not found");
     }
@@ -754,11 +987,10 @@ public class VirtualMachineImpl {
     }
 
     public ThreadGroupReferenceImpl getThreadGroupReferenceById(long id) {
-        for (ThreadReferenceImpl thread : allThreads()) {
-            ThreadGroupReferenceImpl threadGroup = thread.threadGroup();
-            if (threadGroup.uniqueID() == id) {
-                return threadGroup;
-            }
+        getAllThreads();
+        ThreadGroupReferenceImpl threadGroup = threadGroupsById.get(id);
+        if (threadGroup != null) {
+            return threadGroup;
         }
         throw new IllegalStateException("ThreadGroup with id " + id + " not found");
     }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Debugger side helper for {@link JDWPExtensions.Batch}: collects command packets data
+ * to be sent in one packet and splits the batch reply.
+ * The packets are sent and received by the debugger through its own JDWP connection.
+ */
+public class BatchRequest {
+    private final ByteArrayOutputStream myData = new ByteArrayOutputStream();
+    private final DataOutputStream myStream = new DataOutputStream(myData);
+    private int myCount = 0;
+
+    /**
+     * Adds a command, returns its index in the reply
+     */
+    public int add(int cmdSet, int cmd, byte[] data) {
+        try {
+            myStream.writeByte(cmdSet);
+            myStream.writeByte(cmd);
+            myStream.writeInt(data.length);
+            myStream.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // never happens for in memory stream
+        }
+        return myCount++;
+    }
+
+    public int size() {
+        return myCount;
+    }
+
+    /**
+     * Whole command packet, ready to be written to the connection
+     */
+    public byte[] toPacket(int id) {
+        byte[] data = myData.toByteArray();
+        ByteBuffer packet = ByteBuffer.allocate(ReplyBuffer.HEADER_SIZE + 4 + data.length);
+        packet.putInt(packet.capacity());
+        packet.putInt(id);
+        packet.put((byte) Packet.NoFlags);
+        packet.put((byte) JDWPExtensions.COMMAND_SET);
+        packet.put((byte) JDWPExtensions.Batch.COMMAND);
+        packet.putInt(myCount);
+        packet.put(data);
+        return packet.array();
+    }
+
+    /**
+     * Splits the whole reply packet, throws IOException if the batch itself failed
+     * (e.g. NOT_IMPLEMENTED if the other side is not sa-jdwp)
+     */
+    public static List<Reply> parseReply(byte[] packet) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        if (packet.length < ReplyBuffer.HEADER_SIZE || buffer.getInt(0) != packet.length) {
+            throw new IOException("Malformed packet");
+        }
+        short errorCode = buffer.getShort(9);
+        if (errorCode != Packet.ReplyNoError) {
+            throw new IOException("Batch failed with error " + errorCode);
+        }
+        buffer.position(ReplyBuffer.HEADER_SIZE);
+        int count = buffer.getInt();
+        List<Reply> replies = new ArrayList<Reply>(count);
+        for (int i = 0; i < count; i++) {
+            short subErrorCode = buffer.getShort();
+            byte[] data = new byte[buffer.getInt()];
+            buffer.get(data);
+            replies.add(new Reply(subErrorCode, data));
+        }
+        return replies;
+    }
+
+    public static class Reply {
+        public final short errorCode;
+        public final byte[] data;
+
+        Reply(short errorCode, byte[] data) {
+            this.errorCode = errorCode;
+            this.data = data;
+        }
+    }
+}
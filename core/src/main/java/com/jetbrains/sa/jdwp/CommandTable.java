@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dense [cmdSet][cmd] dispatch table, every entry keeps always-on call statistics.
+ * New commands in JDWP must be registered here.
+ */
+final class CommandTable {
+    private static final Entry[][] TABLE = new Entry[256][];
+
+    static {
+        int set;
+        set = JDWP.VirtualMachine.COMMAND_SET;
+        add(set, JDWP.VirtualMachine.Version.COMMAND, "VirtualMachine.Version", new JDWP.VirtualMachine.Version());
+        add(set, JDWP.VirtualMachine.ClassesBySignature.COMMAND, "VirtualMachine.ClassesBySignature", new JDWP.VirtualMachine.ClassesBySignature());
+        add(set, JDWP.VirtualMachine.AllClasses.COMMAND, "VirtualMachine.AllClasses", new JDWP.VirtualMachine.AllClasses());
+        add(set, JDWP.VirtualMachine.AllThreads.COMMAND, "VirtualMachine.AllThreads", new JDWP.VirtualMachine.AllThreads());
+        add(set, JDWP.VirtualMachine.TopLevelThreadGroups.COMMAND, "VirtualMachine.TopLevelThreadGroups", new JDWP.VirtualMachine.TopLevelThreadGroups());
+        add(set, JDWP.VirtualMachine.Dispose.COMMAND, "VirtualMachine.Dispose", new JDWP.VirtualMachine.Dispose());
+        add(set, JDWP.VirtualMachine.IDSizes.COMMAND, "VirtualMachine.IDSizes", new JDWP.VirtualMachine.IDSizes());
+        add(set, JDWP.VirtualMachine.Suspend.COMMAND, "VirtualMachine.Suspend", new JDWP.VirtualMachine.Suspend());
+        add(set, JDWP.VirtualMachine.Resume.COMMAND, "VirtualMachine.Resume", new JDWP.VirtualMachine.Resume());
+        add(set, JDWP.VirtualMachine.Exit.COMMAND, "VirtualMachine.Exit", new JDWP.VirtualMachine.Exit());
+        add(set, JDWP.VirtualMachine.CreateString.COMMAND, "VirtualMachine.CreateString", new JDWP.VirtualMachine.CreateString());
+        add(set, JDWP.VirtualMachine.Capabilities.COMMAND, "VirtualMachine.Capabilities", new JDWP.VirtualMachine.Capabilities());
+        add(set, JDWP.VirtualMachine.ClassPaths.COMMAND, "VirtualMachine.ClassPaths", new JDWP.VirtualMachine.ClassPaths());
+        add(set, JDWP.VirtualMachine.DisposeObjects.COMMAND, "VirtualMachine.DisposeObjects", new JDWP.VirtualMachine.DisposeObjects());
+        add(set, JDWP.VirtualMachine.HoldEvents.COMMAND, "VirtualMachine.HoldEvents", new JDWP.VirtualMachine.HoldEvents());
+        add(set, JDWP.VirtualMachine.ReleaseEvents.COMMAND, "VirtualMachine.ReleaseEvents", new JDWP.VirtualMachine.ReleaseEvents());
+        add(set, JDWP.VirtualMachine.CapabilitiesNew.COMMAND, "VirtualMachine.CapabilitiesNew", new JDWP.VirtualMachine.CapabilitiesNew());
+        add(set, JDWP.VirtualMachine.RedefineClasses.COMMAND, "VirtualMachine.RedefineClasses", new JDWP.VirtualMachine.RedefineClasses());
+        add(set, JDWP.VirtualMachine.SetDefaultStratum.COMMAND, "VirtualMachine.SetDefaultStratum", new JDWP.VirtualMachine.SetDefaultStratum());
+        add(set, JDWP.VirtualMachine.AllClassesWithGeneric.COMMAND, "VirtualMachine.AllClassesWithGeneric", new JDWP.VirtualMachine.AllClassesWithGeneric());
+        add(set, JDWP.VirtualMachine.InstanceCounts.COMMAND, "VirtualMachine.InstanceCounts", new JDWP.VirtualMachine.InstanceCounts());
+        add(set, JDWP.VirtualMachine.AllModules.COMMAND, "VirtualMachine.AllModules", new JDWP.VirtualMachine.AllModules());
+
+        set = JDWP.ReferenceType.COMMAND_SET;
+        add(set, JDWP.ReferenceType.Signature.COMMAND, "ReferenceType.Signature", new JDWP.ReferenceType.Signature());
+        add(set, JDWP.ReferenceType.ClassLoader.COMMAND, "ReferenceType.ClassLoader", new JDWP.ReferenceType.ClassLoader());
+        add(set, JDWP.ReferenceType.Modifiers.COMMAND, "ReferenceType.Modifiers", new JDWP.ReferenceType.Modifiers());
+        add(set, JDWP.ReferenceType.Fields.COMMAND, "ReferenceType.Fields", new JDWP.ReferenceType.Fields());
+        add(set, JDWP.ReferenceType.Methods.COMMAND, "ReferenceType.Methods", new JDWP.ReferenceType.Methods());
+        add(set, JDWP.ReferenceType.GetValues.COMMAND, "ReferenceType.GetValues", new JDWP.ReferenceType.GetValues());
+        add(set, JDWP.ReferenceType.SourceFile.COMMAND, "ReferenceType.SourceFile", new JDWP.ReferenceType.SourceFile());
+        add(set, JDWP.ReferenceType.NestedTypes.COMMAND, "ReferenceType.NestedTypes", new JDWP.ReferenceType.NestedTypes());
+        add(set, JDWP.ReferenceType.Status.COMMAND, "ReferenceType.Status", new JDWP.ReferenceType.Status());
+        add(set, JDWP.ReferenceType.Interfaces.COMMAND, "ReferenceType.Interfaces", new JDWP.ReferenceType.Interfaces());
+        add(set, JDWP.ReferenceType.ClassObject.COMMAND, "ReferenceType.ClassObject", new JDWP.ReferenceType.ClassObject());
+        add(set, JDWP.ReferenceType.SourceDebugExtension.COMMAND, "ReferenceType.SourceDebugExtension", new JDWP.ReferenceType.SourceDebugExtension());
+        add(set, JDWP.ReferenceType.SignatureWithGeneric.COMMAND, "ReferenceType.SignatureWithGeneric", new JDWP.ReferenceType.SignatureWithGeneric());
+        add(set, JDWP.ReferenceType.FieldsWithGeneric.COMMAND, "ReferenceType.FieldsWithGeneric", new JDWP.ReferenceType.FieldsWithGeneric());
+        add(set, JDWP.ReferenceType.MethodsWithGeneric.COMMAND, "ReferenceType.MethodsWithGeneric", new JDWP.ReferenceType.MethodsWithGeneric());
+        add(set, JDWP.ReferenceType.Instances.COMMAND, "ReferenceType.Instances", new JDWP.ReferenceType.Instances());
+        add(set, JDWP.ReferenceType.ClassFileVersion.COMMAND, "ReferenceType.ClassFileVersion", new JDWP.ReferenceType.ClassFileVersion());
+        add(set, JDWP.ReferenceType.ConstantPool.COMMAND, "ReferenceType.ConstantPool", new JDWP.ReferenceType.ConstantPool());
+        add(set, JDWP.ReferenceType.Module.COMMAND, "ReferenceType.Module", new JDWP.ReferenceType.Module());
+
+        set = JDWP.ClassType.COMMAND_SET;
+        add(set, JDWP.ClassType.Superclass.COMMAND, "ClassType.Superclass", new JDWP.ClassType.Superclass());
+        add(set, JDWP.ClassType.SetValues.COMMAND, "ClassType.SetValues", new JDWP.ClassType.SetValues());
+        add(set, JDWP.ClassType.InvokeMethod.COMMAND, "ClassType.InvokeMethod", new JDWP.ClassType.InvokeMethod());
+        add(set, JDWP.ClassType.NewInstance.COMMAND, "ClassType.NewInstance", new JDWP.ClassType.NewInstance());
+
+        set = JDWP.ArrayType.COMMAND_SET;
+        add(set, JDWP.ArrayType.NewInstance.COMMAND, "ArrayType.NewInstance", new JDWP.ArrayType.NewInstance());
+
+        set = JDWP.InterfaceType.COMMAND_SET;
+        add(set, JDWP.InterfaceType.InvokeMethod.COMMAND, "InterfaceType.InvokeMethod", new JDWP.InterfaceType.InvokeMethod());
+
+        set = JDWP.Method.COMMAND_SET;
+        add(set, JDWP.Method.LineTable.COMMAND, "Method.LineTable", new JDWP.Method.LineTable());
+        add(set, JDWP.Method.VariableTable.COMMAND, "Method.VariableTable", new JDWP.Method.VariableTable());
+        add(set, JDWP.Method.Bytecodes.COMMAND, "Method.Bytecodes", new JDWP.Method.Bytecodes());
+        add(set, JDWP.Method.IsObsolete.COMMAND, "Method.IsObsolete", new JDWP.Method.IsObsolete());
+        add(set, JDWP.Method.VariableTableWithGeneric.COMMAND, "Method.VariableTableWithGeneric", new JDWP.Method.VariableTableWithGeneric());
+
+        set = JDWP.ObjectReference.COMMAND_SET;
+        add(set, JDWP.ObjectReference.ReferenceType.COMMAND, "ObjectReference.ReferenceType", new JDWP.ObjectReference.ReferenceType());
+        add(set, JDWP.ObjectReference.GetValues.COMMAND, "ObjectReference.GetValues", new JDWP.ObjectReference.GetValues());
+        add(set, JDWP.ObjectReference.SetValues.COMMAND, "ObjectReference.SetValues", new JDWP.ObjectReference.SetValues());
+        add(set, JDWP.ObjectReference.MonitorInfo.COMMAND, "ObjectReference.MonitorInfo", new JDWP.ObjectReference.MonitorInfo());
+        add(set, JDWP.ObjectReference.InvokeMethod.COMMAND, "ObjectReference.InvokeMethod", new JDWP.ObjectReference.InvokeMethod());
+        add(set, JDWP.ObjectReference.DisableCollection.COMMAND, "ObjectReference.DisableCollection", new JDWP.ObjectReference.DisableCollection());
+        add(set, JDWP.ObjectReference.EnableCollection.COMMAND, "ObjectReference.EnableCollection", new JDWP.ObjectReference.EnableCollection());
+        add(set, JDWP.ObjectReference.IsCollected.COMMAND, "ObjectReference.IsCollected", new JDWP.ObjectReference.IsCollected());
+        add(set, JDWP.ObjectReference.ReferringObjects.COMMAND, "ObjectReference.ReferringObjects", new JDWP.ObjectReference.ReferringObjects());
+
+        set = JDWP.StringReference.COMMAND_SET;
+        add(set, JDWP.StringReference.Value.COMMAND, "StringReference.Value", new JDWP.StringReference.Value());
+
+        set = JDWP.ThreadReference.COMMAND_SET;
+        add(set, JDWP.ThreadReference.Name.COMMAND, "ThreadReference.Name", new JDWP.ThreadReference.Name());
+        add(set, JDWP.ThreadReference.Suspend.COMMAND, "ThreadReference.Suspend", new JDWP.ThreadReference.Suspend());
+        add(set, JDWP.ThreadReference.Resume.COMMAND, "ThreadReference.Resume", new JDWP.ThreadReference.Resume());
+        add(set, JDWP.ThreadReference.Status.COMMAND, "ThreadReference.Status", new JDWP.ThreadReference.Status());
+        add(set, JDWP.ThreadReference.ThreadGroup.COMMAND, "ThreadReference.ThreadGroup", new JDWP.ThreadReference.ThreadGroup());
+        add(set, JDWP.ThreadReference.Frames.COMMAND, "ThreadReference.Frames", new JDWP.ThreadReference.Frames());
+        add(set, JDWP.ThreadReference.FrameCount.COMMAND, "ThreadReference.FrameCount", new JDWP.ThreadReference.FrameCount());
+        add(set, JDWP.ThreadReference.OwnedMonitors.COMMAND, "ThreadReference.OwnedMonitors", new JDWP.ThreadReference.OwnedMonitors());
+        add(set, JDWP.ThreadReference.CurrentContendedMonitor.COMMAND, "ThreadReference.CurrentContendedMonitor", new JDWP.ThreadReference.CurrentContendedMonitor());
+        add(set, JDWP.ThreadReference.Stop.COMMAND, "ThreadReference.Stop", new JDWP.ThreadReference.Stop());
+        add(set, JDWP.ThreadReference.Interrupt.COMMAND, "ThreadReference.Interrupt", new JDWP.ThreadReference.Interrupt());
+        add(set, JDWP.ThreadReference.SuspendCount.COMMAND, "ThreadReference.SuspendCount", new JDWP.ThreadReference.SuspendCount());
+        add(set, JDWP.ThreadReference.OwnedMonitorsStackDepthInfo.COMMAND, "ThreadReference.OwnedMonitorsStackDepthInfo", new JDWP.ThreadReference.OwnedMonitorsStackDepthInfo());
+        add(set, JDWP.ThreadReference.ForceEarlyReturn.COMMAND, "ThreadReference.ForceEarlyReturn", new JDWP.ThreadReference.ForceEarlyReturn());
+
+        set = JDWP.ThreadGroupReference.COMMAND_SET;
+        add(set, JDWP.ThreadGroupReference.Name.COMMAND, "ThreadGroupReference.Name", new JDWP.ThreadGroupReference.Name());
+        add(set, JDWP.ThreadGroupReference.Parent.COMMAND, "ThreadGroupReference.Parent", new JDWP.ThreadGroupReference.Parent());
+        add(set, JDWP.ThreadGroupReference.Children.COMMAND, "ThreadGroupReference.Children", new JDWP.ThreadGroupReference.Children());
+
+        set = JDWP.ArrayReference.COMMAND_SET;
+        add(set, JDWP.ArrayReference.Length.COMMAND, "ArrayReference.Length", new JDWP.ArrayReference.Length());
+        add(set, JDWP.ArrayReference.GetValues.COMMAND, "ArrayReference.GetValues", new JDWP.ArrayReference.GetValues());
+        add(set, JDWP.ArrayReference.SetValues.COMMAND, "ArrayReference.SetValues", new JDWP.ArrayReference.SetValues());
+
+        set = JDWP.ClassLoaderReference.COMMAND_SET;
+        add(set, JDWP.ClassLoaderReference.VisibleClasses.COMMAND, "ClassLoaderReference.VisibleClasses", new JDWP.ClassLoaderReference.VisibleClasses());
+
+        set = JDWP.EventRequest.COMMAND_SET;
+        add(set, JDWP.EventRequest.Set.COMMAND, "EventRequest.Set", new JDWP.EventRequest.Set());
+        add(set, JDWP.EventRequest.Clear.COMMAND, "EventRequest.Clear", new JDWP.EventRequest.Clear());
+        add(set, JDWP.EventRequest.ClearAllBreakpoints.COMMAND, "EventRequest.ClearAllBreakpoints", new JDWP.EventRequest.ClearAllBreakpoints());
+
+        set = JDWP.StackFrame.COMMAND_SET;
+        add(set, JDWP.StackFrame.GetValues.COMMAND, "StackFrame.GetValues", new JDWP.StackFrame.GetValues());
+        add(set, JDWP.StackFrame.SetValues.COMMAND, "StackFrame.SetValues", new JDWP.StackFrame.SetValues());
+        add(set, JDWP.StackFrame.ThisObject.COMMAND, "StackFrame.ThisObject", new JDWP.StackFrame.ThisObject());
+        add(set, JDWP.StackFrame.PopFrames.COMMAND, "StackFrame.PopFrames", new JDWP.StackFrame.PopFrames());
+
+        set = JDWP.ClassObjectReference.COMMAND_SET;
+        add(set, JDWP.ClassObjectReference.ReflectedType.COMMAND, "ClassObjectReference.ReflectedType", new JDWP.ClassObjectReference.ReflectedType());
+
+        set = JDWP.ModuleReference.COMMAND_SET;
+        add(set, JDWP.ModuleReference.Name.COMMAND, "ModuleReference.Name", new JDWP.ModuleReference.Name());
+        add(set, JDWP.ModuleReference.ClassLoader.COMMAND, "ModuleReference.ClassLoader", new JDWP.ModuleReference.ClassLoader());
+
+        set = JDWP.Event.COMMAND_SET;
+        add(set, JDWP.Event.Composite.COMMAND, "Event.Composite", new JDWP.Event.Composite());
+
+        set = JDWPExtensions.COMMAND_SET;
+        add(set, JDWPExtensions.Batch.COMMAND, "Extensions.Batch", new JDWPExtensions.Batch());
+        add(set, JDWPExtensions.Statistics.COMMAND, "Extensions.Statistics", new JDWPExtensions.Statistics());
+
+        // heap walks
+        runInBackground(JDWP.VirtualMachine.COMMAND_SET, JDWP.VirtualMachine.InstanceCounts.COMMAND);
+        runInBackground(JDWP.ReferenceType.COMMAND_SET, JDWP.ReferenceType.Instances.COMMAND);
+        runInBackground(JDWP.ObjectReference.COMMAND_SET, JDWP.ObjectReference.ReferringObjects.COMMAND);
+
+        // answers do not change while the target is attached
+        cacheReplies(JDWP.VirtualMachine.COMMAND_SET, JDWP.VirtualMachine.ClassesBySignature.COMMAND);
+        cacheReplies(JDWP.VirtualMachine.COMMAND_SET, JDWP.VirtualMachine.AllClasses.COMMAND);
+        cacheReplies(JDWP.VirtualMachine.COMMAND_SET, JDWP.VirtualMachine.AllClassesWithGeneric.COMMAND);
+        cacheReplies(JDWP.ReferenceType.COMMAND_SET, JDWP.ReferenceType.Fields.COMMAND);
+        cacheReplies(JDWP.ReferenceType.COMMAND_SET, JDWP.ReferenceType.Methods.COMMAND);
+        cacheReplies(JDWP.ReferenceType.COMMAND_SET, JDWP.ReferenceType.FieldsWithGeneric.COMMAND);
+        cacheReplies(JDWP.ReferenceType.COMMAND_SET, JDWP.ReferenceType.MethodsWithGeneric.COMMAND);
+        cacheReplies(JDWP.Method.COMMAND_SET, JDWP.Method.LineTable.COMMAND);
+        cacheReplies(JDWP.Method.COMMAND_SET, JDWP.Method.VariableTable.COMMAND);
+        cacheReplies(JDWP.Method.COMMAND_SET, JDWP.Method.VariableTableWithGeneric.COMMAND);
+    }
+
+    private CommandTable() {
+    }
+
+    private static void add(int cmdSet, int cmd, String name, Command command) {
+        Entry[] commands = TABLE[cmdSet];
+        if (commands == null) {
+            commands = TABLE[cmdSet] = new Entry[cmd + 1];
+        } else if (commands.length <= cmd) {
+            Entry[] newCommands = new Entry[cmd + 1];
+            System.arraycopy(commands, 0, newCommands, 0, commands.length);
+            commands = TABLE[cmdSet] = newCommands;
+        }
+        commands[cmd] = new Entry(name, command);
+    }
+
+    private static void runInBackground(int cmdSet, int cmd) {
+        TABLE[cmdSet][cmd].myBackground = true;
+    }
+
+    private static void cacheReplies(int cmdSet, int cmd) {
+        TABLE[cmdSet][cmd].myCacheable = true;
+    }
+
+    /**
+     * Returns null for unknown commands
+     */
+    static Entry get(int cmdSet, int cmd) {
+        if (cmdSet < 0 || cmdSet >= TABLE.length) {
+            return null;
+        }
+        Entry[] commands = TABLE[cmdSet];
+        return commands != null && cmd >= 0 && cmd < commands.length ? commands[cmd] : null;
+    }
+
+    static void dump(PrintStream out) {
+        List<Entry> called = new ArrayList<Entry>();
+        for (Entry[] commands : TABLE) {
+            if (commands != null) {
+                for (Entry entry : commands) {
+                    if (entry != null && entry.myCount.get() > 0) {
+                        called.add(entry);
+                    }
+                }
+            }
+        }
+        Collections.sort(called, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                long t1 = o1.myTotalNanos.get();
+                long t2 = o2.myTotalNanos.get();
+                return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+            }
+        });
+        out.println(String.format("%-50s %10s %12s %14s %12s %10s %10s %10s %10s",
+                "Command", "Count", "Bytes in", "Bytes out", "Total ms", "p50 us", "p90 us", "p99 us", "Max us"));
+        for (Entry entry : called) {
+            LatencyHistogram histogram = entry.myHistogram;
+            // bucket bounds may be above the real maximum
+            long max = entry.myMaxNanos.get();
+            out.println(String.format("%-50s %10d %12d %14d %12.1f %10.1f %10.1f %10.1f %10.1f",
+                    entry.myName,
+                    entry.myCount.get(),
+                    entry.myBytesIn.get(),
+                    entry.myBytesOut.get(),
+                    entry.myTotalNanos.get() / 1e6,
+                    Math.min(histogram.valueAtPercentile(50), max) / 1e3,
+                    Math.min(histogram.valueAtPercentile(90), max) / 1e3,
+                    Math.min(histogram.valueAtPercentile(99), max) / 1e3,
+                    max / 1e3));
+        }
+        out.flush();
+    }
+
+    static void reset() {
+        for (Entry[] commands : TABLE) {
+            if (commands != null) {
+                for (Entry entry : commands) {
+                    if (entry != null) {
+                        entry.reset();
+                    }
+                }
+            }
+        }
+    }
+
+    static final class Entry {
+        final String myName;
+        final Command myCommand;
+        // long running, executed in background without blocking other commands
+        boolean myBackground = false;
+        // same request always gets the same reply, see ReplyCache
+        boolean myCacheable = false;
+        private final AtomicLong myCount = new AtomicLong();
+        private final AtomicLong myBytesIn = new AtomicLong();
+        private final AtomicLong myBytesOut = new AtomicLong();
+        private final AtomicLong myTotalNanos = new AtomicLong();
+        private final AtomicLong myMaxNanos = new AtomicLong();
+        private final LatencyHistogram myHistogram = new LatencyHistogram();
+
+        private Entry(String name, Command command) {
+            myName = name;
+            myCommand = command;
+        }
+
+        void record(int bytesIn, int bytesOut, long nanos) {
+            myCount.incrementAndGet();
+            myBytesIn.addAndGet(bytesIn);
+            myBytesOut.addAndGet(bytesOut);
+            myTotalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = myMaxNanos.get()) && !myMaxNanos.compareAndSet(max, nanos)) {
+            }
+            myHistogram.record(nanos);
+        }
+
+        private void reset() {
+            myCount.set(0);
+            myBytesIn.set(0);
+            myBytesOut.set(0);
+            myTotalNanos.set(0);
+            myMaxNanos.set(0);
+            myHistogram.reset();
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.sun.jdi.ClassNotLoadedException;
 import com.sun.jdi.IncompatibleThreadStateException;
 import com.sun.jdi.VMDisconnectedException;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -119,7 +120,7 @@ public class JDWP {
                     //typeID = answer.readClassRef();
                     answer.writeClassRef(referenceType.uniqueID());
                     //status = answer.readInt();
-                    answer.writeInt(referenceType.ref().getClassStatus());
+                    answer.writeInt(referenceType.classStatus());
                 }
             }
 
@@ -183,7 +184,11 @@ public class JDWP {
                     //signature = answer.readString();
                     answer.writeString(referenceType.signature());
                     //status = answer.readInt();
-                    answer.writeInt(referenceType.ref().getClassStatus());
+                    answer.writeInt(referenceType.classStatus());
+                }
+
+                public static int size(ReferenceTypeImpl referenceType, VirtualMachineImpl vm) {
+                    return 1 + vm.sizeofClassRef + 4 + PacketStream.utf8Length(referenceType.signature()) + 4;
                 }
             }
 
@@ -195,6 +200,11 @@ public class JDWP {
 
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
                 List<ReferenceTypeImpl> referenceTypes = vm.vm.allClasses();
+                long size = 4;
+                for (ReferenceTypeImpl referenceType : referenceTypes) {
+                    size += ClassInfo.size(referenceType, vm);
+                }
+                answer.expectDataSize(size);
                 answer.writeInt(referenceTypes.size());
                 for (ReferenceTypeImpl referenceType : referenceTypes) {
                     ClassInfo.write(referenceType, vm, answer);
@@ -572,6 +582,12 @@ public class JDWP {
 
 
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+                int requestsCount = command.readInt();
+                for (int i = 0; i < requestsCount; i++) {
+                    long objectId = command.readObjectRef();
+                    command.readInt(); // refCnt, ids are not counted
+                    vm.disposeObject(objectId);
+                }
             }
         }
 
@@ -953,7 +969,13 @@ public class JDWP {
                     //genericSignature = answer.readString();
                     answer.writeStringOrEmpty(cls.genericSignature());
                     //status = answer.readInt();
-                    answer.writeInt(cls.ref().getClassStatus());
+                    answer.writeInt(cls.classStatus());
+                }
+
+                public static int size(ReferenceTypeImpl cls, VirtualMachineImpl vm) {
+                    String genericSignature = cls.genericSignature();
+                    return 1 + vm.sizeofClassRef + 4 + PacketStream.utf8Length(cls.signature()) +
+                            4 + (genericSignature != null ? PacketStream.utf8Length(genericSignature) : 0) + 4;
                 }
             }
 
@@ -965,6 +987,11 @@ public class JDWP {
 
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
                 List<ReferenceTypeImpl> allClasses = vm.vm.allClasses();
+                long size = 4;
+                for (ReferenceTypeImpl cls : allClasses) {
+                    size += ClassInfo.size(cls, vm);
+                }
+                answer.expectDataSize(size);
 //                //int classesCount = answer.readInt();
                 answer.writeInt(allClasses.size());
                 //classes = new ClassInfo[classesCount];
@@ -1389,7 +1416,7 @@ public class JDWP {
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
                 ReferenceTypeImpl type = command.readReferenceType();
                 //status = answer.readInt();
-                answer.writeInt(type.ref().getClassStatus());
+                answer.writeInt(type.classStatus());
             }
         }
 
@@ -1699,6 +1726,7 @@ public class JDWP {
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
                 ReferenceTypeImpl type = command.readReferenceType();
                 List<ObjectReferenceImpl> instances = type.instances(command.readInt());
+                answer.expectDataSize(4 + (long) instances.size() * (1 + vm.sizeofObjectRef));
 //                //int instancesCount = answer.readInt();
                 answer.writeInt(instances.size());
                 for (ObjectReferenceImpl instance : instances) {
@@ -2515,10 +2543,13 @@ public class JDWP {
                 ObjectReferenceImpl objectReference = vm.vm.objectMirror(command.readObjectRef());
                 ReferenceTypeImpl referenceType = objectReference.referenceType();
                 int count = command.readInt();
-                answer.writeInt(count);
+                List<FieldImpl> fields = new ArrayList<FieldImpl>(count);
                 for (int i = 0; i < count; i++) {
-                    long id = command.readFieldRef();
-                    answer.writeValue(objectReference.getValue(referenceType.fieldById(id)));
+                    fields.add(referenceType.fieldById(command.readFieldRef()));
+                }
+                answer.writeInt(count);
+                for (ValueImpl value : objectReference.getValues(fields)) {
+                    answer.writeValue(value);
                 }
 //                //int valuesCount = answer.readInt();
                 //values = new ValueImpl[valuesCount];
@@ -2696,7 +2727,9 @@ public class JDWP {
 
 
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
-                notImplemented(answer);
+                if (!vm.disableCollection(command.readObjectRef())) {
+                    answer.pkt.errorCode = Error.INVALID_OBJECT;
+                }
             }
         }
 
@@ -2713,7 +2746,7 @@ public class JDWP {
 
 
             public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
-                notImplemented(answer);
+                vm.enableCollection(command.readObjectRef());
             }
         }
 
@@ -3375,9 +3408,53 @@ public class JDWP {
                     tag = ValueImpl.typeValueKey(arrayReference.getValue(0));
                 }
 
+                int valueSize = primitiveValueSize(tag);
+                if (valueSize > 0) {
+                    // primitive values are copied from the target memory in chunks, without a mirror for every value
+                    if (length == -1) { // -1 means the rest of the array
+                        length = arrayReference.length() - start;
+                    }
+                    arrayReference.validateArrayAccess(start, length);
+                    int chunk = BULK_READ_SIZE / valueSize;
+                    int count = Math.min(length, chunk);
+                    ByteBuffer values = arrayReference.getPrimitiveValues(start, count);
+                    if (values != null) {
+                        answer.expectDataSize(5 + (long) length * valueSize);
+                        answer.writeByte(tag);
+                        answer.writeInt(length);
+                        answer.writePrimitiveValues(values, valueSize);
+                        for (int i = count; i < length; i += chunk) {
+                            answer.writePrimitiveValues(arrayReference.getPrimitiveValues(start + i, Math.min(chunk, length - i)), valueSize);
+                        }
+                        return;
+                    }
+                }
+
                 //values = answer.readArrayRegion();
                 answer.writeArrayRegion(arrayReference.getValues(start, length), tag);
             }
+
+            private static final int BULK_READ_SIZE = 64 * 1024;
+
+            // size of the untagged value, 0 for objects
+            private static int primitiveValueSize(byte tag) {
+                switch (tag) {
+                    case Tag.BOOLEAN:
+                    case Tag.BYTE:
+                        return 1;
+                    case Tag.CHAR:
+                    case Tag.SHORT:
+                        return 2;
+                    case Tag.INT:
+                    case Tag.FLOAT:
+                        return 4;
+                    case Tag.LONG:
+                    case Tag.DOUBLE:
+                        return 8;
+                    default:
+                        return 0;
+                }
+            }
         }
 
         /**
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * sa-jdwp specific commands, JDWP leaves command sets 128-255 for vendor extensions.
+ * Debuggers should be ready to get NOT_IMPLEMENTED from other JDWP agents.
+ */
+public final class JDWPExtensions {
+    public static final int COMMAND_SET = 128;
+
+    private JDWPExtensions() {
+    }
+
+    /**
+     * Executes several commands in one round trip, see {@link BatchRequest} for the client side.
+     * Request: int count, then for every command: byte cmdSet, byte cmd, int length, length bytes of the command data.
+     * Reply: int count, then for every command: short errorCode, int length, length bytes of the reply data.
+     * Commands are executed in order, batches can not be nested.
+     * A batch with a heap walk is executed in background like the heap walk itself.
+     */
+    static class Batch implements Command {
+        static final int COMMAND = 1;
+
+        /**
+         * True if any of the batched commands should not block the connection, see {@link CommandTable}
+         */
+        static boolean hasBackgroundCommands(Packet batch) {
+            try {
+                ByteBuffer data = ByteBuffer.wrap(batch.data);
+                int count = data.getInt();
+                for (int i = 0; i < count; i++) {
+                    CommandTable.Entry entry = CommandTable.get(data.get() & 0xff, data.get() & 0xff);
+                    if (entry != null && entry.myBackground) {
+                        return true;
+                    }
+                    int length = data.getInt();
+                    data.position(data.position() + length);
+                }
+            } catch (RuntimeException ignored) {
+                // malformed batch, fails when executed
+            }
+            return false;
+        }
+
+        public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+            int count = command.readInt();
+            answer.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                Packet request = new Packet();
+                request.id = command.pkt.id;
+                request.flags = Packet.NoFlags;
+                request.cmdSet = (short) (command.readByte() & 0xff);
+                request.cmd = (short) (command.readByte() & 0xff);
+                request.data = command.readByteArray(command.readInt());
+
+                Packet reply = new Packet();
+                reply.id = request.id;
+                // error code and length are filled when the command is done
+                int headerPosition = answer.dataStream.position();
+                answer.writeShort((short) 0);
+                answer.writeInt(0);
+                PacketStream subAnswer = new PacketStream(answer, reply);
+                if (request.cmdSet == COMMAND_SET && request.cmd == COMMAND) {
+                    reply.errorCode = JDWP.Error.ILLEGAL_ARGUMENT;
+                } else {
+                    JDWPProxy.runCommand(vm, CommandTable.get(request.cmdSet, request.cmd), request, subAnswer);
+                }
+                answer.dataStream.putShort(headerPosition, reply.errorCode);
+                answer.dataStream.putInt(headerPosition + 2, subAnswer.dataSize());
+            }
+        }
+    }
+
+    /**
+     * Returns the command statistics as printed by {@link JDWPProxy#dumpStatistics}.
+     * Reply: string
+     */
+    static class Statistics implements Command {
+        static final int COMMAND = 2;
+
+        public void reply(VirtualMachineImpl vm, PacketStream answer, PacketStream command) {
+            try {
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                PrintStream printStream = new PrintStream(byteStream, false, "UTF8");
+                JDWPProxy.dumpStatistics(printStream);
+                printStream.close();
+                answer.writeString(byteStream.toString("UTF8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
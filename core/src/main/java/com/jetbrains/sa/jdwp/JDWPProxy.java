@@ -19,82 +19,263 @@ import com.sun.jdi.VMDisconnectedException;
 import com.sun.jdi.connect.spi.Connection;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author egor
  */
 public class JDWPProxy {
-    private static final Map<Integer, Map<Integer, Command>> COMMANDS = new HashMap<Integer, Map<Integer, Command>>();
+    // dump command statistics to stderr when the debugger disconnects
+    private static final boolean DUMP_STATISTICS = Boolean.getBoolean("sa.jdwp.stats");
+    // record the session traffic into this file, see TraceFile
+    private static final String TRACE_FILE = System.getProperty("sa.jdwp.trace");
+    private static final AtomicInteger ourTraceCounter = new AtomicInteger();
+    // reply cache size in megabytes, 0 to disable
+    private static final long REPLY_CACHE_SIZE = Long.getLong("sa.jdwp.reply.cache.size", 64) * 1024 * 1024;
 
-    static {
+    // one per attached vm, shared by all its connections
+    private static final Map<com.jetbrains.sa.jdi.VirtualMachineImpl, ReplyCache> REPLY_CACHES =
+            new WeakHashMap<com.jetbrains.sa.jdi.VirtualMachineImpl, ReplyCache>();
+
+    // vms served so far, for the statistics
+    private static final Map<com.jetbrains.sa.jdi.VirtualMachineImpl, Boolean> SERVED_VMS =
+            new WeakHashMap<com.jetbrains.sa.jdi.VirtualMachineImpl, Boolean>();
+
+    /**
+     * Serves the connection until the debugger disconnects, then disposes the vm
+     */
+    public static void reply(Connection connection, com.jetbrains.sa.jdi.VirtualMachineImpl vm) throws IOException {
         try {
-            Class<?>[] declaredClasses = JDWP.class.getDeclaredClasses();
-            for (Class<?> declaredClass : declaredClasses) {
-                try {
-                    int setId = (Integer) declaredClass.getDeclaredField("COMMAND_SET").get(null);
-                    Class<?>[] commandsClasses = declaredClass.getDeclaredClasses();
-                    HashMap<Integer, Command> commandsMap = new HashMap<Integer, Command>();
-                    COMMANDS.put(setId, commandsMap);
-                    for (Class<?> commandsClass : commandsClasses) {
-                        try {
-                            int commandId = (Integer) commandsClass.getDeclaredField("COMMAND").get(null);
-                            commandsMap.put(commandId, (Command) commandsClass.getDeclaredConstructor().newInstance());
-                        } catch (NoSuchFieldException ignored) {
-                        }
-                    }
-                } catch (NoSuchFieldException ignored) {
+            serve(connection, vm);
+        } finally {
+            synchronized (REPLY_CACHES) {
+                ReplyCache cache = REPLY_CACHES.remove(vm);
+                if (cache != null) {
+                    cache.clear();
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            //todo: dispose breaks subsequent connections, need to investigate
+            vm.dispose();
         }
     }
 
-    public static void reply(Connection connection, com.jetbrains.sa.jdi.VirtualMachineImpl vm) throws IOException {
-        VirtualMachineImpl virtualMachine = new VirtualMachineImpl(connection, vm);
+    /**
+     * Serves the connection until the debugger disconnects, the vm and all its caches stay alive
+     * and may be shared by several connections served concurrently
+     */
+    public static void serve(Connection connection, final com.jetbrains.sa.jdi.VirtualMachineImpl vm) throws IOException {
+        final VirtualMachineImpl virtualMachine = new VirtualMachineImpl(connection, vm);
+        synchronized (SERVED_VMS) {
+            SERVED_VMS.put(vm, Boolean.TRUE);
+        }
 
 //        sendVMStart(virtualMachine);
 
+        // heap walks are executed here, replies are matched by id so they may go out of order
+        ExecutorService backgroundExecutor = null;
+        TraceFile.Writer trace = null;
         try {
+            if (TRACE_FILE != null) {
+                // subsequent sessions get numbered files
+                int session = ourTraceCounter.incrementAndGet();
+                trace = virtualMachine.trace = new TraceFile.Writer(new File(session > 1 ? TRACE_FILE + "." + session : TRACE_FILE));
+            }
             while (true) {
-                byte[] b = connection.readPacket();
-                Packet p = Packet.fromByteArray(b);
-                int cmdSet = p.cmdSet;
-                int cmd = p.cmd;
-                PacketStream packetStream = new PacketStream(virtualMachine, p.id, cmdSet, cmd);
-                Command command = COMMANDS.get(cmdSet).get(cmd);
-                try {
-                    command.reply(virtualMachine, packetStream, new PacketStream(virtualMachine, p));
-                } catch (VMDisconnectedException vde) {
-                    throw  vde;
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                    packetStream.pkt.errorCode = JDWP.Error.INTERNAL;
-                    packetStream.dataStream.reset();
-
-                    // serialize the original exception as a utf8 string
-                    try {
-                        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                        PrintStream printStream = new PrintStream(byteStream, false, "UTF8");
-                        e.printStackTrace(printStream);
-                        printStream.write(vm.name().getBytes("UTF-8")); // append jvm name in the end
-                        printStream.close();
-                        packetStream.writeString(byteStream.toString("UTF8"));
-                    } catch (Exception ignored) {
+                final Packet p = readPacket(connection);
+                if (p == null) {
+                    break;
+                }
+                if (trace != null) {
+                    trace.write(TraceFile.REQUEST, p.toByteArray());
+                }
+                final CommandTable.Entry entry = CommandTable.get(p.cmdSet, p.cmd);
+                if (entry != null && (entry.myBackground || entry.myCommand instanceof JDWPExtensions.Batch && JDWPExtensions.Batch.hasBackgroundCommands(p))) {
+                    if (backgroundExecutor == null) {
+                        backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "JDWP heap walker");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
                     }
+                    backgroundExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                execute(virtualMachine, entry, p);
+                            } catch (VMDisconnectedException ignored) {
+                            }
+                        }
+                    });
+                } else {
+                    execute(virtualMachine, entry, p);
                 }
-                packetStream.send();
             }
         } catch (VMDisconnectedException ignored) {
         } finally {
+            if (backgroundExecutor != null) {
+                // interrupts and cancels the running heap walk
+                backgroundExecutor.shutdownNow();
+            }
+            // other sessions may still keep the objects
+            vm.lock().lock();
+            try {
+                virtualMachine.enableCollectionOfAll();
+            } finally {
+                vm.lock().unlock();
+            }
+            if (DUMP_STATISTICS) {
+                dumpStatistics(System.err);
+            }
             connection.close();
-            //todo: dispose breaks subsequent connections, need to investigate
-            vm.dispose();
+            if (trace != null) {
+                virtualMachine.trace = null;
+                trace.close();
+            }
+        }
+    }
+
+    private static void execute(VirtualMachineImpl virtualMachine, CommandTable.Entry entry, Packet p) {
+        long start = System.nanoTime();
+        PacketStream packetStream = new PacketStream(virtualMachine, p.id, p.cmdSet, p.cmd);
+        try {
+            runCommand(virtualMachine, entry, p, packetStream);
+        } catch (CancellationException e) {
+            return; // the debugger is gone, no reply needed
+        }
+        int replySize = packetStream.packetLength();
+        packetStream.send();
+        if (entry != null) {
+            entry.record(p.data.length + ReplyBuffer.HEADER_SIZE, replySize, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Writes the reply to the request into the packet stream, failures are reported in the reply,
+     * only VMDisconnectedException and CancellationException are thrown
+     */
+    static void runCommand(VirtualMachineImpl virtualMachine, CommandTable.Entry entry, Packet p, PacketStream packetStream) {
+        com.jetbrains.sa.jdi.VirtualMachineImpl vm = virtualMachine.vm;
+        try {
+            ReplyCache cache = entry != null && entry.myCacheable ? getReplyCache(vm) : null;
+            byte[] cachedReply = cache != null ? cache.get(p) : null;
+            if (cachedReply != null) {
+                packetStream.writeByteArray(cachedReply);
+            } else if (entry != null) {
+                if (cache != null) {
+                    // a reply which fits the cache is not streamed, the first time it costs the memory for the whole reply
+                    packetStream.bufferUpTo(cache.maxReplySize());
+                }
+                // sa is not thread safe, commands from all the connections are executed one at a time.
+                // Commands of a batch run under the lock taken once for the batch, so that heap walks can yield it
+                boolean lock = !vm.lock().isHeldByCurrentThread();
+                if (lock) {
+                    vm.lock().lockInterruptibly();
+                }
+                try {
+                    entry.myCommand.reply(virtualMachine, packetStream, new PacketStream(virtualMachine, p));
+                } finally {
+                    if (lock) {
+                        vm.lock().unlock();
+                    }
+                }
+                // streamed replies are too big for the cache and already gone
+                if (cache != null && packetStream.pkt.errorCode == Packet.ReplyNoError && !packetStream.isStreaming()) {
+                    cache.put(p, packetStream.data());
+                }
+            } else {
+                packetStream.pkt.errorCode = JDWP.Error.NOT_IMPLEMENTED;
+            }
+        } catch (VMDisconnectedException vde) {
+            packetStream.abortStreaming();
+            throw vde;
+        } catch (CancellationException e) {
+            packetStream.abortStreaming();
+            throw e;
+        } catch (InterruptedException e) {
+            packetStream.abortStreaming();
+            throw new CancellationException("Interrupted");
+        } catch (Throwable e) {
+            e.printStackTrace();
+            if (packetStream.abortStreaming()) {
+                // a part of the reply is already sent, the error can not be reported
+                throw new VMDisconnectedException("Failed in the middle of a streamed reply: " + e);
+            }
+            packetStream.pkt.errorCode = JDWP.Error.INTERNAL;
+            packetStream.resetData();
+
+            // serialize the original exception as a utf8 string
+            try {
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                PrintStream printStream = new PrintStream(byteStream, false, "UTF8");
+                e.printStackTrace(printStream);
+                printStream.write(vm.name().getBytes("UTF-8")); // append jvm name in the end
+                printStream.close();
+                packetStream.writeString(byteStream.toString("UTF8"));
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Clears the statistics collected so far
+     */
+    public static void resetStatistics() {
+        CommandTable.reset();
+    }
+
+    private static ReplyCache getReplyCache(com.jetbrains.sa.jdi.VirtualMachineImpl vm) {
+        if (REPLY_CACHE_SIZE <= 0) {
+            return null;
+        }
+        synchronized (REPLY_CACHES) {
+            ReplyCache cache = REPLY_CACHES.get(vm);
+            if (cache == null) {
+                cache = new ReplyCache(REPLY_CACHE_SIZE);
+                REPLY_CACHES.put(vm, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Prints call count, traffic and latency percentiles of every command called so far
+     */
+    public static void dumpStatistics(PrintStream out) {
+        CommandTable.dump(out);
+        synchronized (SERVED_VMS) {
+            for (com.jetbrains.sa.jdi.VirtualMachineImpl vm : SERVED_VMS.keySet()) {
+                out.println(vm.objectMirrorCacheStatistics());
+                String readCacheStatistics = vm.readCacheStatistics();
+                if (readCacheStatistics != null) {
+                    out.println(readCacheStatistics);
+                }
+            }
+        }
+        synchronized (REPLY_CACHES) {
+            for (ReplyCache cache : REPLY_CACHES.values()) {
+                out.println(cache);
+            }
+        }
+    }
+
+    private static Packet readPacket(Connection connection) throws IOException {
+        if (connection instanceof NioConnection) {
+            return ((NioConnection) connection).receive();
         }
+        byte[] b = connection.readPacket();
+        return b.length > 0 ? Packet.fromByteArray(b) : null;
     }
 
     private static void sendVMStart(VirtualMachineImpl virtualMachine) {
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import com.sun.jdi.connect.TransportTimeoutException;
+import com.sun.jdi.connect.spi.ClosedConnectionException;
+import com.sun.jdi.connect.spi.Connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking socket connection.
+ * Incoming packets are framed directly out of a reusable read buffer,
+ * so a burst of small requests is served by a single socket read.
+ */
+public class NioConnection extends Connection {
+    private static final byte[] HANDSHAKE = {'J', 'D', 'W', 'P', '-', 'H', 'a', 'n', 'd', 's', 'h', 'a', 'k', 'e'};
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel myChannel;
+    private final Selector myReadSelector;
+    private final Selector myWriteSelector;
+    private final Object myReadLock = new Object();
+    private final ReentrantLock myWriteLock = new ReentrantLock();
+    // always in "read" mode: unread bytes are between position and limit
+    private ByteBuffer myReadBuffer;
+    private volatile boolean myClosed = false;
+
+    NioConnection(SocketChannel channel) throws IOException {
+        myChannel = channel;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        myReadSelector = Selector.open();
+        myWriteSelector = Selector.open();
+        channel.register(myReadSelector, SelectionKey.OP_READ);
+        channel.register(myWriteSelector, SelectionKey.OP_WRITE);
+        myReadBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        myReadBuffer.flip();
+    }
+
+    void handshake(boolean sendFirst, long timeout) throws IOException {
+        if (sendFirst) {
+            write(ByteBuffer.wrap(HANDSHAKE));
+        }
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        synchronized (myReadLock) {
+            if (!fill(HANDSHAKE.length, deadline)) {
+                throw new IOException("handshake failed - connection prematurely closed");
+            }
+            byte[] received = new byte[HANDSHAKE.length];
+            myReadBuffer.get(received);
+            for (int i = 0; i < HANDSHAKE.length; i++) {
+                if (received[i] != HANDSHAKE[i]) {
+                    throw new IOException("handshake failed - received >" + new String(received, "UTF-8") +
+                            "< - expected >" + new String(HANDSHAKE, "UTF-8") + "<");
+                }
+            }
+        }
+        if (!sendFirst) {
+            write(ByteBuffer.wrap(HANDSHAKE));
+        }
+    }
+
+    /**
+     * Reads the next packet, returns null if the other side closed the connection
+     */
+    Packet receive() throws IOException {
+        synchronized (myReadLock) {
+            if (!fill(4, 0)) {
+                if (myReadBuffer.hasRemaining()) {
+                    throw new EOFException("connection closed in the middle of a packet");
+                }
+                return null;
+            }
+            int length = myReadBuffer.getInt(myReadBuffer.position());
+            if (length < 11) {
+                throw new IOException("packet is insufficient size");
+            }
+            if (!fill(length, 0)) {
+                throw new EOFException("connection closed in the middle of a packet");
+            }
+            return Packet.fromByteBuffer(myReadBuffer, length);
+        }
+    }
+
+    /**
+     * Makes sure that at least size bytes are available in the read buffer,
+     * returns false if the stream ended before that
+     */
+    private boolean fill(int size, long deadline) throws IOException {
+        ByteBuffer buffer = myReadBuffer;
+        while (buffer.remaining() < size) {
+            if (buffer.capacity() < size) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+                bigger.put(buffer);
+                buffer = myReadBuffer = bigger;
+            } else {
+                buffer.compact();
+            }
+            int read;
+            try {
+                while ((read = myChannel.read(buffer)) == 0) {
+                    long timeout = 0;
+                    if (deadline > 0) {
+                        timeout = deadline - System.currentTimeMillis();
+                        if (timeout <= 0) {
+                            throw new TransportTimeoutException("timeout waiting for data");
+                        }
+                    }
+                    select(myReadSelector, timeout);
+                }
+            } finally {
+                buffer.flip();
+            }
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes all the buffers with a gathering write
+     */
+    void write(ByteBuffer... buffers) throws IOException {
+        myWriteLock.lock();
+        try {
+            if (myClosed) {
+                throw new ClosedConnectionException();
+            }
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                long written = myChannel.write(buffers);
+                if (written == 0) {
+                    select(myWriteSelector, 0);
+                }
+                remaining -= written;
+            }
+        } finally {
+            myWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Keeps other threads from writing until {@link #unlockWrites}, for packets written in several parts
+     */
+    void lockWrites() {
+        myWriteLock.lock();
+    }
+
+    void unlockWrites() {
+        myWriteLock.unlock();
+    }
+
+    private void select(Selector selector, long timeout) throws IOException {
+        if (myClosed) {
+            throw new ClosedConnectionException();
+        }
+        try {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new ClosedConnectionException();
+        }
+    }
+
+    @Override
+    public byte[] readPacket() throws IOException {
+        Packet packet = receive();
+        return packet != null ? packet.toByteArray() : new byte[0];
+    }
+
+    @Override
+    public void writePacket(byte[] b) throws IOException {
+        if (b.length < 11) {
+            throw new IllegalArgumentException("packet is insufficient size");
+        }
+        int len = ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+        if (len < 11 || len > b.length) {
+            throw new IllegalArgumentException("length mis-match");
+        }
+        write(ByteBuffer.wrap(b, 0, len));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (myClosed) {
+            return;
+        }
+        myClosed = true;
+        myReadSelector.wakeup();
+        myWriteSelector.wakeup();
+        try {
+            myChannel.close();
+        } finally {
+            myReadSelector.close();
+            myWriteSelector.close();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !myClosed;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import com.sun.jdi.connect.TransportTimeoutException;
+import com.sun.jdi.connect.spi.Connection;
+import com.sun.jdi.connect.spi.TransportService;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket transport based on non-blocking channels, an alternative to SocketTransportService.
+ * Addresses have the same "host:port" or "port" format.
+ */
+public class NioTransportService extends TransportService {
+    @Override
+    public String name() {
+        return "NioSocket";
+    }
+
+    @Override
+    public String description() {
+        return "Non-blocking socket transport";
+    }
+
+    @Override
+    public Capabilities capabilities() {
+        return new Capabilities() {
+            @Override
+            public boolean supportsMultipleConnections() {
+                return true;
+            }
+
+            @Override
+            public boolean supportsAttachTimeout() {
+                return true;
+            }
+
+            @Override
+            public boolean supportsAcceptTimeout() {
+                return true;
+            }
+
+            @Override
+            public boolean supportsHandshakeTimeout() {
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public Connection attach(String address, long attachTimeout, long handshakeTimeout) throws IOException {
+        if (address == null) {
+            throw new NullPointerException("address is null");
+        }
+        if (attachTimeout < 0 || handshakeTimeout < 0) {
+            throw new IllegalArgumentException("timeout is negative");
+        }
+        int splitIndex = address.lastIndexOf(':');
+        String host = splitIndex < 0 ? InetAddress.getLocalHost().getHostName() : address.substring(0, splitIndex);
+        InetSocketAddress socketAddress = new InetSocketAddress(host, parsePort(address.substring(splitIndex + 1)));
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (!channel.connect(socketAddress)) {
+                Selector selector = Selector.open();
+                try {
+                    channel.register(selector, SelectionKey.OP_CONNECT);
+                    if (selector.select(attachTimeout) == 0) {
+                        throw new TransportTimeoutException("timeout waiting for connection");
+                    }
+                } finally {
+                    selector.close();
+                }
+                channel.finishConnect();
+            }
+            NioConnection connection = new NioConnection(channel);
+            connection.handshake(true, handshakeTimeout);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public ListenKey startListening(String address) throws IOException {
+        if (address == null || address.length() == 0) {
+            address = "0";
+        }
+        int splitIndex = address.lastIndexOf(':');
+        int port = parsePort(address.substring(splitIndex + 1));
+        InetSocketAddress socketAddress;
+        if (splitIndex <= 0 || address.substring(0, splitIndex).equals("*")) {
+            socketAddress = new InetSocketAddress(port);
+        } else {
+            socketAddress = new InetSocketAddress(address.substring(0, splitIndex), port);
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().bind(socketAddress);
+            serverChannel.configureBlocking(false);
+            return new NioListenKey(serverChannel);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public ListenKey startListening() throws IOException {
+        return startListening(null);
+    }
+
+    @Override
+    public void stopListening(ListenKey listenKey) throws IOException {
+        if (!(listenKey instanceof NioListenKey)) {
+            throw new IllegalArgumentException("Invalid listener");
+        }
+        NioListenKey key = (NioListenKey) listenKey;
+        if (!key.myChannel.isOpen()) {
+            throw new IllegalArgumentException("Invalid listener");
+        }
+        try {
+            key.myChannel.close();
+        } finally {
+            key.mySelector.close();
+        }
+    }
+
+    @Override
+    public Connection accept(ListenKey listenKey, long acceptTimeout, long handshakeTimeout) throws IOException {
+        if (acceptTimeout < 0 || handshakeTimeout < 0) {
+            throw new IllegalArgumentException("timeout is negative");
+        }
+        if (!(listenKey instanceof NioListenKey)) {
+            throw new IllegalArgumentException("Invalid listener");
+        }
+        NioListenKey key = (NioListenKey) listenKey;
+        SocketChannel channel;
+        // the key may be used for several accepts, one at a time
+        synchronized (key) {
+            while ((channel = key.myChannel.accept()) == null) {
+                if (key.mySelector.select(acceptTimeout) == 0 && acceptTimeout > 0) {
+                    throw new TransportTimeoutException("timeout waiting for connection");
+                }
+                key.mySelector.selectedKeys().clear();
+            }
+        }
+        try {
+            NioConnection connection = new NioConnection(channel);
+            connection.handshake(false, handshakeTimeout);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int parsePort(String port) {
+        try {
+            return Integer.decode(port);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("unable to parse port number in address");
+        }
+    }
+
+    private static class NioListenKey extends ListenKey {
+        private final ServerSocketChannel myChannel;
+        private final Selector mySelector;
+
+        NioListenKey(ServerSocketChannel channel) throws IOException {
+            myChannel = channel;
+            mySelector = Selector.open();
+            channel.register(mySelector, SelectionKey.OP_ACCEPT);
+        }
+
+        @Override
+        public String address() {
+            InetAddress address = myChannel.socket().getInetAddress();
+            // if bound to the wildcard address then use current local hostname
+            if (address.isAnyLocalAddress()) {
+                try {
+                    address = InetAddress.getLocalHost();
+                } catch (UnknownHostException e) {
+                    try {
+                        address = InetAddress.getByAddress("127.0.0.1", new byte[]{0x7f, 0x00, 0x00, 0x01});
+                    } catch (UnknownHostException ignored) {
+                    }
+                }
+            }
+            String hostName = address.getHostName();
+            String hostAddress = address.getHostAddress();
+            String host;
+            if (!hostName.equals(hostAddress)) {
+                host = hostName;
+            } else if (address instanceof Inet6Address) {
+                host = "[" + hostAddress + "]";
+            } else {
+                host = hostAddress;
+            }
+            return host + ":" + myChannel.socket().getLocalPort();
+        }
+
+        public String toString() {
+            return address();
+        }
+    }
+}
@@ -39,6 +39,7 @@
 package com.jetbrains.sa.jdwp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Packet {
     public final static short NoFlags = 0x0;
@@ -128,6 +129,26 @@ public class Packet {
         return p;
     }
 
+    /**
+     * Create a packet from the next len bytes of the buffer, only the packet data is copied
+     */
+    static Packet fromByteBuffer(ByteBuffer b, int len) {
+        Packet p = new Packet();
+        b.getInt(); // length, already checked by the caller
+        p.id = b.getInt();
+        p.flags = (short)(b.get() & 0xff);
+        if ((p.flags & Packet.Reply) == 0) {
+            p.cmdSet = (short)(b.get() & 0xff);
+            p.cmd = (short)(b.get() & 0xff);
+        } else {
+            p.errorCode = b.getShort();
+        }
+
+        p.data = new byte[len - 11];
+        b.get(p.data);
+        return p;
+    }
+
     Packet()
     {
         id = uniqID();
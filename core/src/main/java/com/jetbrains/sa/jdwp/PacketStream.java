@@ -41,15 +41,22 @@ package com.jetbrains.sa.jdwp;
 import com.jetbrains.sa.jdi.*;
 import com.sun.jdi.InternalException;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class PacketStream {
+    // smaller replies are not worth streaming
+    private static final int STREAMING_THRESHOLD = 256 * 1024;
+
     final VirtualMachineImpl vm;
     private int inCursor = 0;
     final Packet pkt;
-    ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+    ReplyBuffer dataStream;
+    // start of the data in dataStream, streams of batched commands write into the buffer of the batch reply
+    private final int dataStart;
     private boolean isCommitted = false;
+    private long expectedDataSize;
+    private long maxBufferedSize = 0;
 
     PacketStream(VirtualMachineImpl vm, int id, int cmdSet, int cmd) {
         this.vm = vm;
@@ -57,23 +64,117 @@ public class PacketStream {
         pkt.id = id;
         pkt.cmdSet = (short) cmdSet;
         pkt.cmd = (short) cmd;
+        this.dataStream = ReplyBuffer.acquire();
+        this.dataStart = ReplyBuffer.HEADER_SIZE;
     }
 
     PacketStream(VirtualMachineImpl vm, Packet pkt) {
         this.vm = vm;
         this.pkt = pkt;
+        this.dataStart = 0;
         this.isCommitted = true; /* read only stream */
     }
 
+    /**
+     * Stream appending to the parent stream data, never sent by itself
+     */
+    PacketStream(PacketStream parent, Packet pkt) {
+        this.vm = parent.vm;
+        this.pkt = pkt;
+        this.dataStream = parent.dataStream;
+        this.dataStart = dataStream.position();
+        this.isCommitted = true;
+    }
+
     int id() {
         return pkt.id;
     }
 
+    int dataSize() {
+        return dataStream.position() - dataStart;
+    }
+
+    byte[] data() {
+        return dataStream.toByteArray(dataStart);
+    }
+
+    void resetData() {
+        dataStream.truncate(dataStart);
+    }
+
+    /**
+     * Length of the whole reply packet
+     */
+    int packetLength() {
+        return dataStream.isStreaming() ? (int) (dataStart + expectedDataSize) : dataStart + dataSize();
+    }
+
+    /**
+     * Announces the exact size of the reply data, must be called before anything is written.
+     * Big replies are then streamed to the debugger while being written instead of being collected in memory first,
+     * so the command should not fail or change the error code afterwards.
+     */
+    void expectDataSize(long size) {
+        if (!isCommitted && size >= STREAMING_THRESHOLD && size > maxBufferedSize && size <= Integer.MAX_VALUE - dataStart && dataSize() == 0) {
+            NioConnection connection = vm.streamingConnection();
+            if (connection != null) {
+                expectedDataSize = size;
+                dataStream.startStreaming(connection, pkt, (int) (dataStart + size));
+            }
+        }
+    }
+
+    /**
+     * Replies up to this size are built in memory and sent when complete, even if they are big enough to be streamed
+     */
+    void bufferUpTo(long size) {
+        maxBufferedSize = size;
+    }
+
+    boolean isStreaming() {
+        return dataStream.isStreaming();
+    }
+
+    /**
+     * Drops the connection if a part of the reply is already sent, returns false if nothing was streamed
+     */
+    boolean abortStreaming() {
+        return dataStream.abortStreaming();
+    }
+
+    static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                length++; // unpaired surrogates are replaced with '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
     void send() {
         if (!isCommitted) {
-            pkt.data = dataStream.toByteArray();
-            vm.sendToTarget(pkt);
             isCommitted = true;
+            try {
+                if (dataStream.isStreaming()) {
+                    dataStream.finishStreaming();
+                } else {
+                    vm.sendToTarget(dataStream.finish(pkt));
+                }
+            } finally {
+                ReplyBuffer.release(dataStream);
+                dataStream = null;
+            }
         }
     }
 
@@ -90,44 +191,27 @@ public class PacketStream {
 //    }
 
     public void writeBoolean(boolean data) {
-        if (data) {
-            dataStream.write(1);
-        } else {
-            dataStream.write(0);
-        }
+        dataStream.put(data ? (byte) 1 : (byte) 0);
     }
 
     public void writeByte(byte data) {
-        dataStream.write(data);
+        dataStream.put(data);
     }
 
     public void writeChar(char data) {
-        dataStream.write((byte) ((data >>> 8) & 0xFF));
-        dataStream.write((byte) ((data >>> 0) & 0xFF));
+        dataStream.putChar(data);
     }
 
     public void writeShort(short data) {
-        dataStream.write((byte) ((data >>> 8) & 0xFF));
-        dataStream.write((byte) ((data >>> 0) & 0xFF));
+        dataStream.putShort(data);
     }
 
     public void writeInt(int data) {
-        dataStream.write((byte) ((data >>> 24) & 0xFF));
-        dataStream.write((byte) ((data >>> 16) & 0xFF));
-        dataStream.write((byte) ((data >>> 8) & 0xFF));
-        dataStream.write((byte) ((data >>> 0) & 0xFF));
+        dataStream.putInt(data);
     }
 
     public void writeLong(long data) {
-        dataStream.write((byte) ((data >>> 56) & 0xFF));
-        dataStream.write((byte) ((data >>> 48) & 0xFF));
-        dataStream.write((byte) ((data >>> 40) & 0xFF));
-        dataStream.write((byte) ((data >>> 32) & 0xFF));
-
-        dataStream.write((byte) ((data >>> 24) & 0xFF));
-        dataStream.write((byte) ((data >>> 16) & 0xFF));
-        dataStream.write((byte) ((data >>> 8) & 0xFF));
-        dataStream.write((byte) ((data >>> 0) & 0xFF));
+        dataStream.putLong(data);
     }
 
     public void writeFloat(float data) {
@@ -178,8 +262,13 @@ public class PacketStream {
         writeID(vm.sizeofFrameRef, data);
     }
 
+    // untagged primitive values of the given size, in the byte order of the buffer
+    void writePrimitiveValues(ByteBuffer values, int valueSize) {
+        dataStream.putValues(values, valueSize);
+    }
+
     void writeByteArray(byte[] data) {
-        dataStream.write(data, 0, data.length);
+        dataStream.put(data, 0, data.length);
     }
 
     void writeStringOrEmpty(String string) {
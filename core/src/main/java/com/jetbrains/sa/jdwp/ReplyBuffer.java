@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import com.sun.jdi.VMDisconnectedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Growable buffer holding the whole outgoing packet: the header is reserved at the start
+ * and filled on {@link #finish}, so the packet is sent without any intermediate copies.
+ * Buffers are pooled and reused across requests.
+ * <p>
+ * When the packet length is known up front the packet may be streamed instead:
+ * the header is filled immediately and the buffer is sent in chunks every time it fills up.
+ */
+final class ReplyBuffer {
+    static final int HEADER_SIZE = 11;
+
+    private static final boolean DIRECT = Boolean.getBoolean("sa.jdwp.direct.buffers");
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    // do not keep huge buffers (AllClasses on big targets etc.) in the pool
+    private static final int MAX_POOLED_CAPACITY = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final ReplyBuffer[] POOL = new ReplyBuffer[4];
+    private static int ourPoolSize = 0;
+
+    private ByteBuffer myBuffer;
+    // not null while the packet is streamed
+    private NioConnection myStreamTarget;
+    // bytes of the streamed packet not sent yet
+    private long myStreamRemaining;
+
+    private ReplyBuffer() {
+        myBuffer = allocate(INITIAL_CAPACITY);
+        reset();
+    }
+
+    static ReplyBuffer acquire() {
+        synchronized (POOL) {
+            if (ourPoolSize > 0) {
+                ReplyBuffer buffer = POOL[--ourPoolSize];
+                POOL[ourPoolSize] = null;
+                buffer.reset();
+                return buffer;
+            }
+        }
+        return new ReplyBuffer();
+    }
+
+    static void release(ReplyBuffer buffer) {
+        if (buffer.myBuffer.capacity() > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        synchronized (POOL) {
+            if (ourPoolSize < POOL.length) {
+                POOL[ourPoolSize++] = buffer;
+            }
+        }
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return DIRECT ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Drops the data written so far
+     */
+    void reset() {
+        myBuffer.clear();
+        myBuffer.position(HEADER_SIZE);
+    }
+
+    /**
+     * Current write position, from the start of the packet
+     */
+    int position() {
+        return myBuffer.position();
+    }
+
+    /**
+     * Drops the data written after the position
+     */
+    void truncate(int position) {
+        myBuffer.position(position);
+    }
+
+    /**
+     * Copy of the packet data written after the position
+     */
+    byte[] toByteArray(int from) {
+        ByteBuffer data = myBuffer.duplicate();
+        data.flip();
+        data.position(from);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    void putShort(int index, short v) {
+        myBuffer.putShort(index, v);
+    }
+
+    void putInt(int index, int v) {
+        myBuffer.putInt(index, v);
+    }
+
+    private ByteBuffer ensureCapacity(int size) {
+        ByteBuffer buffer = myBuffer;
+        if (buffer.remaining() < size && myStreamTarget != null) {
+            flush();
+        }
+        if (buffer.remaining() < size) {
+            int required = buffer.position() + size;
+            if (required < 0) {
+                throw new OutOfMemoryError("Packet is too big");
+            }
+            ByteBuffer bigger = allocate(Math.max(required, buffer.capacity() * 2));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = myBuffer = bigger;
+        }
+        return buffer;
+    }
+
+    void put(byte b) {
+        ensureCapacity(1).put(b);
+    }
+
+    void put(byte[] b, int off, int len) {
+        if (myStreamTarget != null && len > myBuffer.capacity()) {
+            flush();
+            send(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        ensureCapacity(len).put(b, off, len);
+    }
+
+    /**
+     * Copies the values between position and limit, converting them from the buffer byte order to the packet one
+     */
+    void putValues(ByteBuffer values, int valueSize) {
+        int size = values.remaining();
+        ByteBuffer buffer = ensureCapacity(size);
+        if (valueSize == 1 || values.order() == buffer.order()) {
+            buffer.put(values);
+            return;
+        }
+        ByteBuffer target = buffer.slice().order(buffer.order());
+        switch (valueSize) {
+            case 2:
+                target.asShortBuffer().put(values.asShortBuffer());
+                break;
+            case 4:
+                target.asIntBuffer().put(values.asIntBuffer());
+                break;
+            case 8:
+                target.asLongBuffer().put(values.asLongBuffer());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported value size " + valueSize);
+        }
+        buffer.position(buffer.position() + size);
+    }
+
+    void putShort(short v) {
+        ensureCapacity(2).putShort(v);
+    }
+
+    void putChar(char v) {
+        ensureCapacity(2).putChar(v);
+    }
+
+    void putInt(int v) {
+        ensureCapacity(4).putInt(v);
+    }
+
+    void putLong(long v) {
+        ensureCapacity(8).putLong(v);
+    }
+
+    /**
+     * Writes the header and returns the buffer with the whole packet between position and limit
+     */
+    ByteBuffer finish(Packet pkt) {
+        ByteBuffer buffer = myBuffer;
+        buffer.flip();
+        writeHeader(buffer, pkt, buffer.limit());
+        return buffer;
+    }
+
+    boolean isStreaming() {
+        return myStreamTarget != null;
+    }
+
+    /**
+     * Switches to streaming of a packet of the given length, nothing should be written yet.
+     * Writes of other packets to the connection are blocked until the streaming is finished or aborted.
+     */
+    void startStreaming(NioConnection connection, Packet pkt, int length) {
+        if (myBuffer.capacity() < CHUNK_SIZE) {
+            myBuffer = allocate(CHUNK_SIZE);
+            reset();
+        }
+        writeHeader(myBuffer, pkt, length);
+        connection.lockWrites();
+        myStreamTarget = connection;
+        myStreamRemaining = length;
+    }
+
+    /**
+     * Sends the rest of the streamed packet.
+     * The connection is closed if the packet could not be completed, the debugger would not be able to recover from it anyway.
+     */
+    void finishStreaming() {
+        try {
+            flush();
+            if (myStreamRemaining != 0) {
+                throw new IllegalStateException("Streamed packet is " + myStreamRemaining + " bytes shorter than announced");
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            abortStreaming();
+            return;
+        }
+        myStreamTarget.unlockWrites();
+        myStreamTarget = null;
+        reset();
+    }
+
+    /**
+     * Closes the connection in the middle of the streamed packet, returns false if there was no streaming in progress
+     */
+    boolean abortStreaming() {
+        NioConnection connection = myStreamTarget;
+        if (connection == null) {
+            return false;
+        }
+        myStreamTarget = null;
+        reset();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            connection.unlockWrites();
+        }
+        return true;
+    }
+
+    private void flush() {
+        myBuffer.flip();
+        try {
+            send(myBuffer);
+        } finally {
+            myBuffer.clear();
+        }
+    }
+
+    private void send(ByteBuffer data) {
+        if (data.remaining() > myStreamRemaining) {
+            throw new IllegalStateException("Streamed packet is longer than announced");
+        }
+        myStreamRemaining -= data.remaining();
+        try {
+            myStreamTarget.write(data);
+        } catch (IOException e) {
+            throw new VMDisconnectedException(e.toString());
+        }
+    }
+
+    private static void writeHeader(ByteBuffer buffer, Packet pkt, int length) {
+        buffer.putInt(0, length);
+        buffer.putInt(4, pkt.id);
+        buffer.put(8, (byte) pkt.flags);
+        if ((pkt.flags & Packet.Reply) == 0) {
+            buffer.put(9, (byte) pkt.cmdSet);
+            buffer.put(10, (byte) pkt.cmd);
+        } else {
+            buffer.putShort(9, pkt.errorCode);
+        }
+    }
+}
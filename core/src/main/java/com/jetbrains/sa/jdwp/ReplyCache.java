@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoded replies of the commands whose answer never changes while the target is attached,
+ * keyed by the command and the request data. Bounded by the total size of the replies, least recently used are evicted.
+ */
+final class ReplyCache {
+    private final long myMaxBytes;
+    private final LinkedHashMap<Key, byte[]> myReplies = new LinkedHashMap<Key, byte[]>(64, 0.75f, true);
+    private long myBytes = 0;
+    private long myHits = 0;
+    private long myMisses = 0;
+
+    ReplyCache(long maxBytes) {
+        myMaxBytes = maxBytes;
+    }
+
+    synchronized byte[] get(Packet request) {
+        byte[] reply = myReplies.get(new Key(request));
+        if (reply != null) {
+            myHits++;
+        } else {
+            myMisses++;
+        }
+        return reply;
+    }
+
+    /**
+     * Bigger replies are not cached, so that one huge reply does not wipe out the whole cache
+     */
+    long maxReplySize() {
+        return myMaxBytes / 4;
+    }
+
+    synchronized void put(Packet request, byte[] reply) {
+        if (reply.length > maxReplySize()) {
+            return;
+        }
+        Key key = new Key(request);
+        byte[] old = myReplies.put(key, reply);
+        if (old != null) {
+            myBytes -= old.length + key.myData.length;
+        }
+        myBytes += reply.length + key.myData.length;
+        Iterator<Map.Entry<Key, byte[]>> iterator = myReplies.entrySet().iterator();
+        while (myBytes > myMaxBytes && iterator.hasNext()) {
+            Map.Entry<Key, byte[]> eldest = iterator.next();
+            myBytes -= eldest.getValue().length + eldest.getKey().myData.length;
+            iterator.remove();
+        }
+    }
+
+    synchronized void clear() {
+        myReplies.clear();
+        myBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Reply cache: " + myReplies.size() + " replies, " + myBytes + " bytes, " + myHits + " hits, " + myMisses + " misses";
+    }
+
+    private static final class Key {
+        private final int myCommand;
+        private final byte[] myData;
+        private final int myHashCode;
+
+        Key(Packet packet) {
+            myCommand = (packet.cmdSet << 8) | packet.cmd;
+            myData = packet.data;
+            myHashCode = 31 * myCommand + Arrays.hashCode(myData);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return myCommand == key.myCommand && myHashCode == key.myHashCode && Arrays.equals(myData, key.myData);
+        }
+
+        @Override
+        public int hashCode() {
+            return myHashCode;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 JetBrains s.r.o.
+ *
+ * This program is free software; you can redistribute and/or modify it under
+ * the terms of the GNU General Public License v2 with Classpath Exception.
+ * The text of the license is available in the file LICENSE.TXT.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See LICENSE.TXT for more details.
+ *
+ * You may contact JetBrains s.r.o. at Na Hřebenech II 1718/10, 140 00 Prague,
+ * Czech Republic or at legal@jetbrains.com.
+ */
+
+package com.jetbrains.sa.jdwp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary trace of a JDWP session: a header followed by records of
+ * kind (byte), nanoseconds since the session start (long) and the whole packet as it goes over the wire.
+ */
+public final class TraceFile {
+    private static final int MAGIC = 0x4A445452; // "JDTR"
+    private static final int VERSION = 1;
+
+    public static final byte REQUEST = 0;
+    public static final byte REPLY = 1;
+
+    private TraceFile() {
+    }
+
+    public static final class Record {
+        public final byte kind;
+        public final long nanos;
+        public final byte[] packet;
+
+        Record(byte kind, long nanos, byte[] packet) {
+            this.kind = kind;
+            this.nanos = nanos;
+            this.packet = packet;
+        }
+
+        public int id() {
+            return ((packet[4] & 0xff) << 24) | ((packet[5] & 0xff) << 16) | ((packet[6] & 0xff) << 8) | (packet[7] & 0xff);
+        }
+
+        public int cmdSet() {
+            return packet[9] & 0xff;
+        }
+
+        public int cmd() {
+            return packet[10] & 0xff;
+        }
+
+        /**
+         * VirtualMachine.Dispose, the last request of a session, never replied
+         */
+        public boolean isDispose() {
+            return cmdSet() == JDWP.VirtualMachine.COMMAND_SET && cmd() == JDWP.VirtualMachine.Dispose.COMMAND;
+        }
+    }
+
+    public static final class Writer implements Closeable {
+        private final DataOutputStream myStream;
+        private final long myStart = System.nanoTime();
+
+        public Writer(File file) throws IOException {
+            myStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            myStream.writeInt(MAGIC);
+            myStream.writeInt(VERSION);
+        }
+
+        public synchronized void write(byte kind, byte[] packet) throws IOException {
+            myStream.writeByte(kind);
+            myStream.writeLong(System.nanoTime() - myStart);
+            myStream.write(packet);
+        }
+
+        synchronized void write(byte kind, ByteBuffer packet) throws IOException {
+            myStream.writeByte(kind);
+            myStream.writeLong(System.nanoTime() - myStart);
+            if (packet.hasArray()) {
+                myStream.write(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining());
+            } else {
+                byte[] bytes = new byte[packet.remaining()];
+                packet.duplicate().get(bytes);
+                myStream.write(bytes);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            myStream.close();
+        }
+    }
+
+    public static final class Reader implements Closeable {
+        private final DataInputStream myStream;
+
+        public Reader(File file) throws IOException {
+            myStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if (myStream.readInt() != MAGIC) {
+                myStream.close();
+                throw new IOException(file + " is not a JDWP trace");
+            }
+            int version = myStream.readInt();
+            if (version != VERSION) {
+                myStream.close();
+                throw new IOException("Unsupported trace version " + version);
+            }
+        }
+
+        /**
+         * Returns null at the end of the trace
+         */
+        public Record next() throws IOException {
+            int kind = myStream.read();
+            if (kind < 0) {
+                return null;
+            }
+            long nanos = myStream.readLong();
+            int length = myStream.readInt();
+            if (length < ReplyBuffer.HEADER_SIZE) {
+                throw new IOException("Broken trace: packet length " + length);
+            }
+            byte[] packet = new byte[length];
+            packet[0] = (byte) (length >>> 24);
+            packet[1] = (byte) (length >>> 16);
+            packet[2] = (byte) (length >>> 8);
+            packet[3] = (byte) length;
+            myStream.readFully(packet, 4, length - 4);
+            return new Record((byte) kind, nanos, packet);
+        }
+
+        @Override
+        public void close() throws IOException {
+            myStream.close();
+        }
+    }
+}
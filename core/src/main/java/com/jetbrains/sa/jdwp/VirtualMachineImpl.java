@@ -18,6 +18,9 @@ package com.jetbrains.sa.jdwp;
 import com.sun.jdi.connect.spi.Connection;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
 
 public class VirtualMachineImpl {
     private final Connection myConnection;
@@ -29,16 +32,83 @@ public class VirtualMachineImpl {
     int sizeofClassRef = 8;
     int sizeofFrameRef = 8;
 
+    // records all the outgoing packets if not null
+    volatile TraceFile.Writer trace;
+
+    // objects this session disabled the collection of, the shared mirror cache counts the pins of all the sessions.
+    // Accessed under the vm lock
+    private final Set<Long> myPinnedObjects = new HashSet<Long>();
+
     public VirtualMachineImpl(Connection myConnection, com.jetbrains.sa.jdi.VirtualMachineImpl vm) {
         this.myConnection = myConnection;
         this.vm = vm;
     }
 
-    void sendToTarget(Packet pkt) {
+    /**
+     * Returns false if the id is not an object
+     */
+    boolean disableCollection(long id) {
+        if (myPinnedObjects.contains(id)) {
+            return true;
+        }
+        if (!vm.disableCollection(id)) {
+            return false;
+        }
+        myPinnedObjects.add(id);
+        return true;
+    }
+
+    void enableCollection(long id) {
+        if (myPinnedObjects.remove(id)) {
+            vm.enableCollection(id);
+        }
+    }
+
+    void disposeObject(long id) {
+        enableCollection(id);
+        vm.disposeObject(id);
+    }
+
+    /**
+     * Drops the pins of this session when it ends, should be called under the vm lock
+     */
+    void enableCollectionOfAll() {
+        for (Long id : myPinnedObjects) {
+            vm.enableCollection(id);
+        }
+        myPinnedObjects.clear();
+    }
+
+    /**
+     * Connection big replies can be streamed to, null if the whole packet is needed at once
+     */
+    NioConnection streamingConnection() {
+        // traced replies are recorded as whole packets
+        return trace == null && myConnection instanceof NioConnection ? (NioConnection) myConnection : null;
+    }
+
+    void sendToTarget(ByteBuffer packet) {
+        TraceFile.Writer trace = this.trace;
+        if (trace != null) {
+            try {
+                trace.write(TraceFile.REPLY, packet);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         try {
-            myConnection.writePacket(pkt.toByteArray());
+            if (myConnection instanceof NioConnection) {
+                ((NioConnection) myConnection).write(packet);
+            } else if (packet.hasArray() && packet.arrayOffset() == 0 && packet.position() == 0) {
+                // only the packet length bytes are written, no need to copy the array
+                myConnection.writePacket(packet.array());
+            } else {
+                byte[] bytes = new byte[packet.remaining()];
+                packet.get(bytes);
+                myConnection.writePacket(bytes);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}